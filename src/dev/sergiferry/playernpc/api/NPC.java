@@ -2,18 +2,18 @@ package dev.sergiferry.playernpc.api;
 
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.properties.Property;
 import com.mojang.datafixers.util.Pair;
 import dev.sergiferry.playernpc.PlayerNPCPlugin;
-import dev.sergiferry.playernpc.nms.craftbukkit.NMSCraftItemStack;
-import dev.sergiferry.playernpc.nms.craftbukkit.NMSCraftScoreboard;
+import dev.sergiferry.playernpc.nms.NMSAccessors;
 import dev.sergiferry.playernpc.nms.minecraft.NMSEntity;
 import dev.sergiferry.playernpc.nms.minecraft.NMSEntityPlayer;
 import dev.sergiferry.playernpc.nms.minecraft.NMSPacketPlayOutEntityDestroy;
-import dev.sergiferry.playernpc.nms.minecraft.NMSPacketPlayOutSpawnEntity;
 import dev.sergiferry.playernpc.utils.ColorUtils;
 import dev.sergiferry.playernpc.utils.StringUtils;
 import dev.sergiferry.playernpc.utils.TimerUtils;
@@ -24,8 +24,10 @@ import net.md_5.bungee.api.ChatMessageType;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.minecraft.EnumChatFormat;
 import net.minecraft.core.BlockPosition;
+import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.game.*;
 import net.minecraft.network.syncher.DataWatcher;
+import net.minecraft.network.syncher.DataWatcherObject;
 import net.minecraft.network.syncher.DataWatcherRegistry;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.EntityPlayer;
@@ -39,7 +41,6 @@ import net.minecraft.world.scores.ScoreboardTeam;
 import net.minecraft.world.scores.ScoreboardTeamBase;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.Validate;
-import org.apache.commons.lang.reflect.FieldUtils;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
@@ -59,14 +60,37 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -127,6 +151,8 @@ public abstract class NPC {
 
     protected abstract void teleport(World world, double x, double y, double z, float yaw, float pitch);
 
+    protected abstract boolean isShownOnAnyClient();
+
     public void teleport(@Nonnull Entity entity){
         Validate.notNull(entity, "Entity must be not null.");
         teleport(entity.getLocation());
@@ -149,8 +175,7 @@ public abstract class NPC {
 
     public void setItem(@Nonnull NPC.Slot slot, @Nullable ItemStack itemStack){
         Validate.notNull(slot, "Failed to set item, NPC.Slot cannot be null");
-        if(itemStack == null) itemStack = new ItemStack(Material.AIR);
-        attributes.slots.put(slot, itemStack);
+        attributes.setItem(slot, itemStack);
     }
 
     public void setHelmet(@Nullable ItemStack itemStack){
@@ -210,13 +235,26 @@ public abstract class NPC {
     }
 
     public void setSkin(@Nullable String playerName, Consumer finishAction){
+        // Skins of NPCs that are being seen are fetched before the rest, and fetching again the current skin is a background refresh.
+        NPC.Skin.FetchPriority priority = NPC.Skin.FetchPriority.NORMAL;
+        if(isShownOnAnyClient()) priority = NPC.Skin.FetchPriority.HIGH;
+        else if(playerName != null && playerName.equalsIgnoreCase(getSkin().getPlayerName())) priority = NPC.Skin.FetchPriority.LOW;
+        setSkin(playerName, finishAction, priority);
+    }
+
+    protected void setSkin(@Nullable String playerName, Consumer finishAction, @Nonnull NPC.Skin.FetchPriority priority){
         if(playerName == null){
             setSkin(Skin.STEVE);
             return;
         }
-        NPC.Skin.fetchSkinAsync(playerName, (skin) -> {
+        NPC.Skin.fetchSkin(getNPCLib().getPlugin(), playerName, false, priority).whenComplete((skin, e) -> {
+            if(e != null){
+                if(e.getCause() instanceof Exception exception) NPCLib.printError(exception);
+                skin = null;
+            }
             setSkin(skin);
-            if(finishAction != null) getPlugin().getServer().getScheduler().runTask(getPlugin(), ()-> finishAction.accept(skin));
+            final NPC.Skin finalSkin = skin;
+            if(finishAction != null) getPlugin().getServer().getScheduler().runTask(getPlugin(), ()-> finishAction.accept(finalSkin));
         });
     }
 
@@ -255,7 +293,9 @@ public abstract class NPC {
     }
 
     public void setSkinVisiblePart(NPC.Skin.Part part, boolean visible){
-        attributes.skinParts.setVisible(part, visible);
+        if(attributes.skinParts.isVisible(part) == visible) return;
+        attributes.getOwnSkinParts().setVisible(part, visible);
+        attributes.markDirty(NPC.Attributes.DIRTY_METADATA);
     }
 
     public void setPose(NPC.Pose pose){
@@ -317,6 +357,18 @@ public abstract class NPC {
         setTextOpacity(NPC.Hologram.Opacity.LOWEST);
     }
 
+    /**
+     * {@link NPC.Hologram.Mode#PASSENGER} only applies to single line holograms without a horizontal text alignment,
+     * the rest keep using {@link NPC.Hologram.Mode#TELEPORT}.
+     */
+    public void setHologramMode(@Nullable NPC.Hologram.Mode hologramMode){
+        attributes.setHologramMode(hologramMode);
+    }
+
+    public void resetHologramMode(){
+        setHologramMode(NPC.Attributes.getDefaultHologramMode());
+    }
+
     public void setGlowingColor(@Nullable ChatColor color){
         setGlowingColor(NPC.Color.getColor(color));
     }
@@ -564,6 +616,11 @@ public abstract class NPC {
 
     protected abstract void move(double moveX, double moveY, double moveZ);
 
+    // The client keeps positions in 1/4096 of a block. The delta between both encoded positions does not drift like encoding the movement does.
+    protected static short getMoveDelta(double from, double move){
+        return (short) (Math.round((from + move) * 4096) - Math.round(from * 4096));
+    }
+
     protected abstract void updatePlayerRotation();
 
     protected void setClickActions(@Nonnull List<NPC.Interact.ClickAction> clickActions){
@@ -597,7 +654,7 @@ public abstract class NPC {
     }
 
     protected HashMap<NPC.Slot, ItemStack> getEquipment(){
-        return attributes.slots;
+        return attributes.getSlots();
     }
 
     public ItemStack getEquipment(NPC.Slot npcSlot){
@@ -605,7 +662,7 @@ public abstract class NPC {
     }
 
     public double getMoveSpeed() {
-        return attributes.moveSpeed;
+        return attributes.getMoveSpeed();
     }
 
     public Move.Task getMoveTask() {
@@ -661,23 +718,23 @@ public abstract class NPC {
     }
 
     public boolean isCollidable() {
-        return attributes.collidable;
+        return attributes.isCollidable();
     }
 
     public Double getHideDistance() {
-        return attributes.hideDistance;
+        return attributes.getHideDistance();
     }
 
     public Double getLineSpacing(){
-        return attributes.lineSpacing;
+        return attributes.getLineSpacing();
     }
 
     public Vector getTextAlignment() {
-        return attributes.textAlignment;
+        return attributes.getTextAlignment();
     }
 
     public Long getInteractCooldown() {
-        return attributes.interactCooldown;
+        return attributes.getInteractCooldown();
     }
 
     public NPC.Color getGlowingColor() {
@@ -685,26 +742,28 @@ public abstract class NPC {
     }
 
     protected HashMap<NPC.Slot, ItemStack> getSlots() {
-        return attributes.slots;
+        return attributes.getSlots();
     }
 
-    public boolean isShowOnTabList() { return attributes.showOnTabList; }
+    public boolean isShowOnTabList() { return attributes.isShowOnTabList(); }
 
     public String getCustomTabListName() { return attributes.customTabListName; }
 
-    public boolean isGlowing() { return attributes.glowing; }
+    public boolean isGlowing() { return attributes.isGlowing(); }
 
     public GazeTrackingType getGazeTrackingType() { return attributes.gazeTrackingType; }
 
     public NPC.Pose getPose() { return attributes.pose; }
 
-    public NPC.Skin.Parts getSkinParts() { return attributes.skinParts; }
+    public NPC.Skin.Parts getSkinParts() { return attributes.getSkinParts(); }
 
     public NPC.Hologram.Opacity getLineOpacity(int line){ return attributes.getLineOpacity(line); }
 
     public NPC.Hologram.Opacity getTextOpacity() { return attributes.textOpacity; }
 
-    public boolean isOnFire() { return attributes.onFire; }
+    public NPC.Hologram.Mode getHologramMode() { return attributes.hologramMode; }
+
+    public boolean isOnFire() { return attributes.isOnFire(); }
 
     public NPC.Attributes getAttributes() { return attributes; }
 
@@ -718,10 +777,13 @@ public abstract class NPC {
 
     public List<NPC.Interact.ClickAction> getClickActions(@Nonnull NPC.Interact.ClickType clickType){ return this.clickActions.stream().filter(x-> x.getClickType() != null && x.getClickType().equals(clickType)).collect(Collectors.toList()); }
 
-    protected HashMap<Integer, NPC.Hologram.Opacity> getLinesOpacity() { return attributes.linesOpacity; }
+    protected HashMap<Integer, NPC.Hologram.Opacity> getLinesOpacity() { return attributes.getLinesOpacity(); }
 
     public static class Personal extends NPC{
 
+        private static final DataWatcherObject<Byte> METADATA_ENTITY_FLAGS = DataWatcherRegistry.a.a(0);
+        private static final DataWatcherObject<Byte> METADATA_SKIN_PARTS = DataWatcherRegistry.a.a(17);
+
         private final Player player;
         private final UUID gameProfileID;
         private EntityPlayer entityPlayer;
@@ -730,6 +792,11 @@ public abstract class NPC {
         private boolean hiddenText;
         private boolean hiddenToPlayer;
         private boolean shownOnTabList;
+        private final AtomicBoolean updateScheduled = new AtomicBoolean();
+        private boolean metadataSent;
+        private byte sentEntityFlags;
+        private byte sentSkinParts;
+        private NPC.Pose sentPose;
         private NPC.Global global;
 
         protected Personal(@Nonnull NPCLib npcLib, @Nonnull Player player, @Nonnull Plugin plugin, @Nonnull String code, @Nonnull World world, double x, double y, double z, float yaw, float pitch){
@@ -759,30 +826,63 @@ public abstract class NPC {
             entityPlayer = NMSEntityPlayer.newEntityPlayer(server, worldServer, gameProfile);
             Validate.notNull(entityPlayer, "Error at NMSEntityPlayer");
             entityPlayer.a(super.x, super.y, super.z, super.yaw, super.pitch);//setLocation
+            getNPCLib().getNPCPlayerManager(player).setEntityID(NMSEntityPlayer.getEntityID(entityPlayer), this);
             this.npcHologram = new NPC.Hologram(this, player);
             updateSkin();
             updatePose();
             updateScoreboard(player);
+            super.attributes.markDirty(NPC.Attributes.DIRTY_ALL);
+            metadataSent = false;
         }
 
-
+        /**
+         * Sends the changes made on the NPC to the player. Only the components whose attributes changed since
+         * the last update are sent.
+         *
+         * @see NPC.Personal#scheduleUpdate()
+         */
         public void update(){
+            Validate.notNull(entityPlayer, "Failed to update the NPC. The NPC has not been created yet.");
+            updateChanges();
+        }
+
+        /**
+         * Sends the changes made on the NPC to the player on the next tick, not when this method returns.
+         * Several calls before then are coalesced into one {@link #update()}. It can be called from any thread.
+         *
+         * @see NPC.Personal#update()
+         */
+        public void scheduleUpdate(){
             Validate.notNull(entityPlayer, "Failed to update the NPC. The NPC has not been created yet.");
             if(!canSee) return;
-            if(!hiddenToPlayer && !isInRange()){
+            if(!updateScheduled.compareAndSet(false, true)) return;
+            Bukkit.getScheduler().runTask(getNPCLib().getPlugin(), ()-> {
+                updateScheduled.set(false);
+                if(!isCreated()) return;
+                updateChanges();
+            });
+        }
+
+        private void updateChanges(){
+            if(!canSee) return;
+            boolean inRange = isInRange();
+            if(!hiddenToPlayer && !inRange){
                 hideToPlayer();
                 return;
             }
-            if(hiddenToPlayer && isInRange() && isInView()){
+            if(hiddenToPlayer && inRange && isInView()){
                 showToPlayer();
                 return;
             }
-            updatePose();
+            // Skin parts can be changed directly on the NPC.Skin.Parts instance, so they are compared with the last ones sent.
+            if(getSkinPartsFlags() != sentSkinParts) super.attributes.markDirty(NPC.Attributes.DIRTY_METADATA);
             updateLook();
-            updateSkin();
-            updatePlayerRotation();
-            updateEquipment();
-            updateMetadata();
+            int dirty = super.attributes.pollDirty();
+            if((dirty & NPC.Attributes.DIRTY_POSE) != 0) updatePose();
+            if((dirty & NPC.Attributes.DIRTY_SKIN) != 0) updateSkin();
+            if((dirty & NPC.Attributes.DIRTY_ROTATION) != 0) updatePlayerRotation();
+            if((dirty & NPC.Attributes.DIRTY_EQUIPMENT) != 0) updateEquipment();
+            if((dirty & (NPC.Attributes.DIRTY_METADATA | NPC.Attributes.DIRTY_POSE)) != 0) updateMetadata();
         }
 
         public void forceUpdate(){
@@ -802,6 +902,7 @@ public abstract class NPC {
             super.yaw = yaw;
             super.pitch = pitch;
             if(!super.world.equals(world)) changeWorld(world);
+            getNPCLib().getNPCPlayerManager(player).updateSpatialIndex(this);
             boolean show = canSee;
             if(npcHologram != null) npcHologram.hide();
             reCreate();
@@ -829,6 +930,7 @@ public abstract class NPC {
             cancelMove();
             if(entityPlayer != null){
                 if(canSee) hide();
+                getNPCLib().getNPCPlayerManager(player).removeEntityID(NMSEntityPlayer.getEntityID(entityPlayer));
                 entityPlayer = null;
             }
             if(npcHologram != null) npcHologram.removeHologram();
@@ -886,6 +988,12 @@ public abstract class NPC {
             updateLocation(player);
         }
 
+        @Override
+        public void setHideDistance(double hideDistance) {
+            super.setHideDistance(hideDistance);
+            getNPCLib().getNPCPlayerManager(player).updateSpatialIndex(this);
+        }
+
         public Move.Behaviour followPlayer(){
             return super.moveBehaviour.setFollowPlayer();
         }
@@ -897,7 +1005,7 @@ public abstract class NPC {
         public void playAnimation(NPC.Animation animation){
             if(animation.isDeprecated()) return;
             PacketPlayOutAnimation packet = new PacketPlayOutAnimation(entityPlayer, animation.getId());
-            NMSCraftPlayer.sendPacket(player, packet);
+            sendPacket(packet);
         }
 
         @Override
@@ -912,6 +1020,7 @@ public abstract class NPC {
             if(a > 45){
                 // DO STUFF
             }
+            if(super.yaw != yaw || super.pitch != pitch) super.attributes.markDirty(NPC.Attributes.DIRTY_ROTATION);
             super.yaw = yaw; //yRot
             super.pitch = pitch; //xRot
             entityPlayer.o(yaw); //setYRot
@@ -926,6 +1035,7 @@ public abstract class NPC {
             Validate.notNull(entityPlayer, "Failed to re-create the NPC. The NPC has not been created yet.");
             boolean show = canSee;
             hide();
+            getNPCLib().getNPCPlayerManager(player).removeEntityID(NMSEntityPlayer.getEntityID(entityPlayer));
             entityPlayer = null;
             create();
             if(show) show();
@@ -950,17 +1060,29 @@ public abstract class NPC {
                 super.yaw = global.getYaw();
                 super.pitch = global.getPitch();
             }
+            getNPCLib().getNPCPlayerManager(player).updateSpatialIndex(this);
         }
 
         protected void updateMove(){
             if(player == null) return;
             if(entityPlayer == null) return;
             if(!canSee) return;
-            if(!hiddenToPlayer && !isInRange()){
+            boolean inRange = isInRange();
+            updateMove(inRange, hiddenToPlayer && inRange && isInView());
+        }
+
+        /**
+         * Same as {@link #updateMove()} but with the range and view already checked, used by the batched visibility pass of the player.
+         */
+        protected void updateMove(boolean inRange, boolean inView){
+            if(player == null) return;
+            if(entityPlayer == null) return;
+            if(!canSee) return;
+            if(!hiddenToPlayer && !inRange){
                 hideToPlayer();
                 return;
             }
-            if(hiddenToPlayer && isInRange() && isInView()){
+            if(hiddenToPlayer && inRange && inView){
                 showToPlayer();
                 return;
             }
@@ -984,9 +1106,9 @@ public abstract class NPC {
                 }
                 Bukkit.getScheduler().scheduleSyncDelayedTask(getNPCLib().getPlugin(), ()-> {
                     Entity near = null;
-                    double var0 = getHideDistance();
+                    double var0 = super.attributes.hideDistance;
                     final Location npcLocation = getLocation();
-                    for(Entity entities : super.world.getNearbyEntities(npcLocation, getHideDistance(), getHideDistance(), getHideDistance())){
+                    for(Entity entities : super.world.getNearbyEntities(npcLocation, var0, var0, var0)){
                         if(var3 && !(entities instanceof Player)) continue;
                         double var1 = entities.getLocation().distance(npcLocation);
                         if(var1 > var0) continue;
@@ -1005,13 +1127,12 @@ public abstract class NPC {
 
         protected void updateLocation(Player player){
             if(entityPlayer == null) return;
-            NMSCraftPlayer.sendPacket(player, new PacketPlayOutEntityTeleport(entityPlayer));
+            sendPacket(new PacketPlayOutEntityTeleport(entityPlayer));
         }
 
         protected void updateScoreboard(Player player){
             GameProfile gameProfile = NMSEntityPlayer.getGameProfile(entityPlayer);
-            Scoreboard scoreboard = null;
-            try{ scoreboard = (Scoreboard) NMSCraftScoreboard.getCraftScoreBoardGetHandle().invoke(NMSCraftScoreboard.getCraftScoreBoardClass().cast(player.getScoreboard())); }catch (Exception e){}
+            Scoreboard scoreboard = NMSAccessors.getScoreboard(player.getScoreboard());
             Validate.notNull(scoreboard, "Error at NMSCraftScoreboard");
             ScoreboardTeam scoreboardTeam = scoreboard.f(getShortUUID()) == null ? new ScoreboardTeam(scoreboard, getShortUUID()) : scoreboard.f(getShortUUID());
             scoreboardTeam.a(ScoreboardTeamBase.EnumNameTagVisibility.b); //EnumNameTagVisibility.NEVER
@@ -1020,21 +1141,24 @@ public abstract class NPC {
             if(isCollidable()) var1 = ScoreboardTeamBase.EnumTeamPush.a; //EnumTeamPush.ALWAYS
             scoreboardTeam.a(var1); //setTeamPush
             scoreboard.a(gameProfile.getName(), scoreboardTeam); //setPlayerTeam
-            NMSCraftPlayer.sendPacket(player, PacketPlayOutScoreboardTeam.a(scoreboardTeam, true));
-            NMSCraftPlayer.sendPacket(player, PacketPlayOutScoreboardTeam.a(scoreboardTeam, false));
+            sendPacket(PacketPlayOutScoreboardTeam.a(scoreboardTeam, true));
+            sendPacket(PacketPlayOutScoreboardTeam.a(scoreboardTeam, false));
         }
 
         @Override
         protected void updatePlayerRotation(){
             if(entityPlayer == null) return;
-            NMSCraftPlayer.sendPacket(player, new PacketPlayOutEntity.PacketPlayOutEntityLook(NMSEntityPlayer.getEntityID(entityPlayer), (byte) ((super.yaw * 256 / 360)), (byte) ((super.pitch * 256 / 360)), false));
-            NMSCraftPlayer.sendPacket(player, new PacketPlayOutEntityHeadRotation(entityPlayer, (byte) (super.yaw * 256 / 360)));
+            sendPacket(new PacketPlayOutEntity.PacketPlayOutEntityLook(NMSEntityPlayer.getEntityID(entityPlayer), (byte) ((super.yaw * 256 / 360)), (byte) ((super.pitch * 256 / 360)), false));
+            sendPacket(new PacketPlayOutEntityHeadRotation(entityPlayer, (byte) (super.yaw * 256 / 360)));
         }
 
         protected void updateSkin(){
             GameProfile gameProfile = NMSEntityPlayer.getGameProfile(entityPlayer);
-            gameProfile.getProperties().get("textures").clear();
-            gameProfile.getProperties().put("textures", new Property("textures", super.attributes.skin.getTexture(), super.attributes.skin.getSignature()));
+            Property textures = super.attributes.skin.getTextureProperty();
+            Collection<Property> current = gameProfile.getProperties().get("textures");
+            if(current.size() == 1 && current.iterator().next() == textures) return;
+            current.clear();
+            gameProfile.getProperties().put("textures", textures);
         }
 
         protected void updatePose(){
@@ -1046,79 +1170,70 @@ public abstract class NPC {
             Validate.isTrue(x < 8 && y < 8 && z < 8, "NPC cannot move 8 blocks or more at once, use teleport instead");
             NPC.Events.Move npcMoveEvent = new NPC.Events.Move(this, new Location(super.world, super.x + x, super.y + y, super.z + z));
             if(npcMoveEvent.isCancelled()) return;
+            applyMove(x, y, z, getMoveDelta(super.x, x), getMoveDelta(super.y, y), getMoveDelta(super.z, z));
+        }
+
+        /**
+         * Moves the NPC without calling the Move event, with the deltas of the packet already computed.
+         * Used by Global NPCs, that compute the movement once for every viewer.
+         */
+        protected void applyMove(double x, double y, double z, short deltaX, short deltaY, short deltaZ){
             super.x += x;
             super.y += y;
             super.z += z;
+            getNPCLib().getNPCPlayerManager(player).updateSpatialIndex(this);
             entityPlayer.g(super.x, super.y, super.z);
             if(npcHologram != null) npcHologram.move(new Vector(x, y, z));
-            movePacket(x, y, z);
+            sendPacket(new PacketPlayOutEntity.PacketPlayOutRelEntityMove(NMSEntityPlayer.getEntityID(entityPlayer), deltaX, deltaY, deltaZ, true));
         }
 
         protected void movePacket(double x, double y, double z) {
             Validate.isTrue(x < 8);
             Validate.isTrue(y < 8);
             Validate.isTrue(z < 8);
-            NMSCraftPlayer.sendPacket(player, new PacketPlayOutEntity.PacketPlayOutRelEntityMove(NMSEntityPlayer.getEntityID(entityPlayer), (short)(x * 4096), (short)(y * 4096), (short)(z * 4096), true));
+            sendPacket(new PacketPlayOutEntity.PacketPlayOutRelEntityMove(NMSEntityPlayer.getEntityID(entityPlayer), (short)(x * 4096), (short)(y * 4096), (short)(z * 4096), true));
         }
 
         protected void updateMetadata() {
-            DataWatcher dataWatcher = NMSEntityPlayer.getDataWatcher(entityPlayer);
-            entityPlayer.i(isGlowing());
-            Map<Integer, DataWatcher.Item<?>> map = null;
-            try{ map = (Map<Integer, DataWatcher.Item<?>>) FieldUtils.readDeclaredField(dataWatcher, "f", true); } catch (IllegalAccessException e){}
-            if(map == null) return;
             //http://wiki.vg/Entities#Entity
             //https://wiki.vg/Entity_metadata#Entity_Metadata_Format
+            entityPlayer.i(isGlowing()); //i setGlowingTag, keeps the glowing state of the server entity in sync
+            byte entityFlags = getEntityFlags();
+            byte skinParts = getSkinPartsFlags();
+            boolean sendAll = !metadataSent;
+            if(!sendAll && entityFlags == sentEntityFlags && skinParts == sentSkinParts && getPose() == sentPose) return;
+            // Only changed entries are marked as dirty, so after the first packet only those (and the pose) are sent.
+            DataWatcher dataWatcher = NMSEntityPlayer.getDataWatcher(entityPlayer);
+            dataWatcher.b(METADATA_ENTITY_FLAGS, entityFlags);
+            dataWatcher.b(METADATA_SKIN_PARTS, skinParts);
+            PacketPlayOutEntityMetadata metadataPacket = new PacketPlayOutEntityMetadata(NMSEntityPlayer.getEntityID(entityPlayer), dataWatcher, sendAll);
+            sendPacket(metadataPacket);
+            metadataSent = true;
+            sentEntityFlags = entityFlags;
+            sentSkinParts = skinParts;
+            sentPose = getPose();
+        }
 
-            //Entity
-            DataWatcher.Item item = map.get(0);
-            byte initialBitMask = (Byte) item.b();
-            byte b = initialBitMask;
-            byte bitMaskIndex = (byte) 0x40;
-            if(isGlowing()) b = (byte) (b | bitMaskIndex);
-            else b = (byte) (b & ~(1 << bitMaskIndex));
-            bitMaskIndex = (byte) 0x01;
-            if(isOnFire()) b = (byte) (b | bitMaskIndex);
-            else b = (byte) (b & ~(1 << bitMaskIndex));
-            dataWatcher.b(DataWatcherRegistry.a.a(0), b);
-            //
-            //Player
-            b = 0x00;
-            //byte b = 0x01 | 0x02 | 0x04 | 0x08 | 0x10 | 0x20 | 0x40;
-            NPC.Skin.Parts parts = getSkinParts();
-            if(parts.isVisible(Skin.Part.CAPE)) b = (byte) (b | 0x01);
-            if(parts.isVisible(Skin.Part.JACKET)) b = (byte) (b | 0x02);
-            if(parts.isVisible(Skin.Part.LEFT_SLEEVE)) b = (byte) (b | 0x04);
-            if(parts.isVisible(Skin.Part.RIGHT_SLEEVE)) b = (byte) (b | 0x08);
-            if(parts.isVisible(Skin.Part.LEFT_PANTS)) b = (byte) (b | 0x10);
-            if(parts.isVisible(Skin.Part.RIGHT_PANTS)) b = (byte) (b | 0x20);
-            if(parts.isVisible(Skin.Part.HAT)) b = (byte) (b | 0x40);
-            dataWatcher.b(DataWatcherRegistry.a.a(17), b);
-            //
-            PacketPlayOutEntityMetadata metadataPacket = new PacketPlayOutEntityMetadata(NMSEntityPlayer.getEntityID(entityPlayer), dataWatcher, true);
-            NMSCraftPlayer.sendPacket(player, metadataPacket);
+        // Only the fire and glowing bits are set from the attributes, the rest (sneaking, invisible...) are kept from the watcher.
+        private byte getEntityFlags(){
+            byte b = NMSEntityPlayer.getDataWatcher(entityPlayer).a(METADATA_ENTITY_FLAGS); //a get
+            b = (byte) (isOnFire() ? b | 0x01 : b & ~0x01);
+            b = (byte) (isGlowing() ? b | 0x40 : b & ~0x40);
+            return b;
+        }
+
+        private byte getSkinPartsFlags(){
+            return super.attributes.skinParts.getMask();
         }
 
         protected void updateEquipment(){
-            List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> equipment = new ArrayList<>();
-            for(NPC.Slot slot : NPC.Slot.values()){
-                EnumItemSlot nmsSlot = slot.getNmsEnum(EnumItemSlot.class);
-                if(!getSlots().containsKey(slot)) getSlots().put(slot, new ItemStack(Material.AIR));
-                ItemStack item = getSlots().get(slot);
-                net.minecraft.world.item.ItemStack craftItem = null;
-                try{ craftItem = (net.minecraft.world.item.ItemStack) NMSCraftItemStack.getCraftItemStackAsNMSCopy().invoke(null, item); }
-                catch (Exception e){}
-                Validate.notNull(craftItem, "Error at NMSCraftItemStack");
-                equipment.add(new Pair(nmsSlot, craftItem));
-            }
-            PacketPlayOutEntityEquipment packet = new PacketPlayOutEntityEquipment(NMSEntityPlayer.getEntityID(entityPlayer), equipment);
-            NMSCraftPlayer.sendPacket(player, packet);
+            getNPCLib().getNPCPlayerManager(player).sendPacket(super.attributes.getEquipmentTemplate(), NMSEntityPlayer.getEntityID(entityPlayer));
         }
 
         private void createPacket(){
             try{
-                NMSCraftPlayer.sendPacket(player, new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.a, entityPlayer)); //EnumPlayerInfoAction.ADD_PLAYER
-                NMSCraftPlayer.sendPacket(player, new PacketPlayOutNamedEntitySpawn(entityPlayer));
+                sendPacket(new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.a, entityPlayer)); //EnumPlayerInfoAction.ADD_PLAYER
+                sendPacket(new PacketPlayOutNamedEntitySpawn(entityPlayer));
             }
             catch (Exception e){ return; }
             shownOnTabList = true;
@@ -1126,7 +1241,7 @@ public abstract class NPC {
             if(isShowOnTabList()) return;
             Bukkit.getScheduler().scheduleSyncDelayedTask(getNPCLib().getPlugin(), ()-> {
                 if(!isCreated()) return;
-                NMSCraftPlayer.sendPacket(player, new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.e, entityPlayer)); //EnumPlayerInfoAction.REMOVE_PLAYER
+                sendPacket(new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.e, entityPlayer)); //EnumPlayerInfoAction.REMOVE_PLAYER
                 shownOnTabList = false;
             }, pluginManager.getTicksUntilTabListHide());
         }
@@ -1135,20 +1250,25 @@ public abstract class NPC {
             if(!hiddenToPlayer) return;
             createPacket();
             hiddenToPlayer = false;
+            super.attributes.markDirty(NPC.Attributes.DIRTY_ALL);
+            metadataSent = false;
+            // If the text was already shown, it was mounted on an entity the client did not have yet.
+            boolean textShown = npcHologram != null && npcHologram.canSee();
             if(getText().size() > 0) updateText();
+            if(textShown) npcHologram.mount();
             Bukkit.getScheduler().scheduleSyncDelayedTask(getNPCLib().getPlugin(), () -> {
                 if(!isCreated()) return;
-                update();
+                updateChanges();
             }, 1);
         }
 
         private void hideToPlayer(){
             if(hiddenToPlayer) return;
             if(shownOnTabList){
-                NMSCraftPlayer.sendPacket(player, new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.e, entityPlayer)); //EnumPlayerInfoAction.REMOVE_PLAYER
+                sendPacket(new PacketPlayOutPlayerInfo(PacketPlayOutPlayerInfo.EnumPlayerInfoAction.e, entityPlayer)); //EnumPlayerInfoAction.REMOVE_PLAYER
                 shownOnTabList = false;
             }
-            NMSCraftPlayer.sendPacket(player, NMSPacketPlayOutEntityDestroy.createPacket(NMSEntityPlayer.getEntityID(entityPlayer)));
+            sendPacket(NMSPacketPlayOutEntityDestroy.createPacket(NMSEntityPlayer.getEntityID(entityPlayer)));
             if(npcHologram != null) npcHologram.hide();
             hiddenToPlayer = true;
         }
@@ -1193,25 +1313,40 @@ public abstract class NPC {
         }
 
         public boolean isInView(double fov){
-            Vector dir = getLocation().toVector().subtract(player.getEyeLocation().toVector()).normalize();
-            return dir.dot(player.getEyeLocation().getDirection()) >= Math.cos(Math.toRadians(fov));
+            Location eyeLocation = player.getEyeLocation();
+            Vector direction = eyeLocation.getDirection();
+            double x = super.x - eyeLocation.getX(), y = super.y - eyeLocation.getY(), z = super.z - eyeLocation.getZ();
+            double dot = x * direction.getX() + y * direction.getY() + z * direction.getZ();
+            double cos = Math.cos(Math.toRadians(fov));
+            double length = Math.sqrt(x * x + y * y + z * z);
+            return dot >= cos * length && length > 0;
         }
 
         public boolean isInRange(){
-            if(!getWorld().getName().equals(player.getWorld().getName())) return false;
-            return getLocation().distance(player.getLocation()) < getHideDistance();
+            Location location = player.getLocation();
+            if(location.getWorld() != getWorld() && !getWorld().getName().equals(location.getWorld().getName())) return false;
+            double x = super.x - location.getX(), y = super.y - location.getY(), z = super.z - location.getZ();
+            double hideDistance = super.attributes.hideDistance;
+            return x * x + y * y + z * z < hideDistance * hideDistance;
         }
 
         public Player getPlayer() {
             return player;
         }
 
+        private void sendPacket(Packet<?> packet){
+            getNPCLib().getNPCPlayerManager(player).sendPacket(packet);
+        }
+
         public boolean isShown(){
             return canSee;
         }
 
         public boolean isShownOnClient() { return canSee && !hiddenToPlayer; }
 
+        @Override
+        protected boolean isShownOnAnyClient() { return isShownOnClient(); }
+
         public boolean canSee() {
             return canSee;
         }
@@ -1243,6 +1378,7 @@ public abstract class NPC {
     public static class Global extends NPC{
 
         private static final Integer LOOK_TICKS = 2;
+        private static final NPC.Attributes NO_CUSTOM_ATTRIBUTES = new NPC.Attributes(null);
 
         protected final HashMap<Player, NPC.Personal> players;
         private final HashMap<UUID, NPC.Attributes> customAttributes;
@@ -1332,8 +1468,6 @@ public abstract class NPC {
             personal.global = this;
             players.put(player, personal);
             if(!selectedPlayers.contains(player.getName())) selectedPlayers.add(player.getName());
-            if(!customAttributes.containsKey(player.getUniqueId())) customAttributes.put(player.getUniqueId(), new Attributes(null));
-            //
             updateAttributes(player);
             if(autoCreate) personal.create();
             if(autoCreate && autoShow) personal.show();
@@ -1362,6 +1496,11 @@ public abstract class NPC {
             players.keySet().stream().filter(x-> isActive(x)).forEach(x-> action.accept(x, getPersonal(x)));
         }
 
+        @Override
+        protected boolean isShownOnAnyClient() {
+            return players.values().stream().anyMatch(x-> x.isShownOnClient());
+        }
+
         public boolean hasPlayer(@Nonnull Player player){
             Validate.notNull(player, "Cannot verify a null Player");
             return players.containsKey(player);
@@ -1425,6 +1564,15 @@ public abstract class NPC {
             getPersonal(player).update();
         }
 
+        /**
+         * @see NPC.Personal#scheduleUpdate()
+         */
+        public void scheduleUpdate(@Nonnull Player player){
+            Validate.notNull(player, "Player cannot be null");
+            updateAttributes(player);
+            getPersonal(player).scheduleUpdate();
+        }
+
         public void forceUpdate(@Nonnull Player player){
             Validate.notNull(player, "Player cannot be null");
             updateAttributes(player);
@@ -1486,100 +1634,113 @@ public abstract class NPC {
         }
 
         public void resetCustomText(Player player){
-            getCustomAttributes(player).text = null;
+            resetCustomAttribute(player, x-> x.text = null);
         }
 
         public void setCustomSkin(Player player, NPC.Skin skin){ getCustomAttributes(player).setSkin(skin); }
 
         public void resetCustomSkin(Player player){
-            getCustomAttributes(player).skin = null;
+            resetCustomAttribute(player, x-> x.skin = null);
         }
 
         public void setCustomCollidable(Player player, boolean collidable){ getCustomAttributes(player).setCollidable(collidable); }
 
         public void resetCustomCollidable(Player player){
-            getCustomAttributes(player).collidable = null;
+            resetCustomAttribute(player, x-> x.unsetFlag(Attributes.FLAG_COLLIDABLE));
         }
 
         public void setCustomHideDistance(Player player, double hideDistance){ getCustomAttributes(player).setHideDistance(hideDistance); }
 
         public void resetCustomHideDistance(Player player){
-            getCustomAttributes(player).hideDistance = null;
+            resetCustomAttribute(player, x-> x.hideDistance = Double.NaN);
         }
 
         public void setCustomGlowing(Player player, boolean glowing){ getCustomAttributes(player).setGlowing(glowing); }
 
         public void resetCustomGlowing(Player player){
-            getCustomAttributes(player).glowing = null;
+            resetCustomAttribute(player, x-> x.unsetFlag(Attributes.FLAG_GLOWING));
         }
 
         public void setCustomGlowingColor(Player player, NPC.Color color){ getCustomAttributes(player).setGlowingColor(color); }
 
         public void resetCustomGlowingColor(Player player){
-            getCustomAttributes(player).glowingColor = null;
+            resetCustomAttribute(player, x-> x.glowingColor = null);
         }
 
         public void setCustomGazeTrackingType(Player player, GazeTrackingType followLookType){ getCustomAttributes(player).setGazeTrackingType(followLookType); }
 
         public void resetCustomGazeTrackingType(Player player){
-            getCustomAttributes(player).gazeTrackingType = null;
+            resetCustomAttribute(player, x-> x.gazeTrackingType = null);
         }
 
         public void setCustomTabListName(Player player, String customTabListName){ getCustomAttributes(player).setCustomTabListName(customTabListName); }
 
         public void resetCustomTabListName(Player player){
-            getCustomAttributes(player).customTabListName = null;
+            resetCustomAttribute(player, x-> x.customTabListName = null);
         }
 
         public void setCustomShowOnTabList(Player player, boolean showOnTabList){ getCustomAttributes(player).setShowOnTabList(showOnTabList); }
 
         public void resetCustomShowOnTabList(Player player){
-            getCustomAttributes(player).showOnTabList = null;
+            resetCustomAttribute(player, x-> x.unsetFlag(Attributes.FLAG_SHOW_ON_TAB_LIST));
         }
 
         public void setCustomPose(Player player, NPC.Pose pose){ getCustomAttributes(player).setPose(pose); }
 
         public void resetCustomPose(Player player){
-            getCustomAttributes(player).pose = null;
+            resetCustomAttribute(player, x-> x.pose = null);
         }
 
         public void setCustomLineSpacing(Player player, double lineSpacing){ getCustomAttributes(player).setLineSpacing(lineSpacing); }
 
         public void resetCustomLineSpacing(Player player){
-            getCustomAttributes(player).lineSpacing = null;
+            resetCustomAttribute(player, x-> x.lineSpacing = Double.NaN);
         }
 
         public void setCustomTextAlignment(Player player, Vector alignment){ getCustomAttributes(player).setTextAlignment(alignment.clone()); }
 
         public void resetCustomTextAlignment(Player player){
-            getCustomAttributes(player).textAlignment = null;
+            resetCustomAttribute(player, x-> x.textAlignment = null);
         }
 
         public void setCustomInteractCooldown(Player player, long millis){ getCustomAttributes(player).setInteractCooldown(millis); }
 
         public void resetCustomInteractCooldown(Player player){
-            getCustomAttributes(player).interactCooldown = null;
+            resetCustomAttribute(player, x-> x.interactCooldown = Attributes.UNSET_INTERACT_COOLDOWN);
         }
 
         public void setCustomTextOpacity(Player player, NPC.Hologram.Opacity opacity){ getCustomAttributes(player).setTextOpacity(opacity); }
 
         public void resetCustomTextOpacity(Player player){
-            getCustomAttributes(player).textOpacity = null;
+            resetCustomAttribute(player, x-> x.textOpacity = null);
+        }
+
+        public void setCustomHologramMode(Player player, NPC.Hologram.Mode hologramMode){ getCustomAttributes(player).setHologramMode(hologramMode); }
+
+        public void resetCustomHologramMode(Player player){
+            resetCustomAttribute(player, x-> x.hologramMode = null);
         }
 
         public void setCustomMoveSpeed(Player player, double moveSpeed){ getCustomAttributes(player).setMoveSpeed(moveSpeed); }
 
         public void resetCustomMoveSpeed(Player player){
-            getCustomAttributes(player).moveSpeed = null;
+            resetCustomAttribute(player, x-> x.moveSpeed = Double.NaN);
         }
 
         public void setCustomOnFire(Player player, boolean onFire){ getCustomAttributes(player).setOnFire(onFire); }
 
         public void resetCustomOnFire(Player player){
-            getCustomAttributes(player).onFire = null;
+            resetCustomAttribute(player, x-> x.unsetFlag(Attributes.FLAG_ON_FIRE));
         }
 
-        public void resetAllCustomAttributes(Player player) { customAttributes.put(player.getUniqueId(), new Attributes(null)); }
+        public void resetAllCustomAttributes(Player player) { customAttributes.remove(player.getUniqueId()); }
+
+        // Resetting never creates the custom attributes of a player, there is nothing to reset if it has none.
+        private void resetCustomAttribute(Player player, Consumer<NPC.Attributes> reset){
+            NPC.Attributes cA = customAttributes.get(player.getUniqueId());
+            if(cA == null) Validate.isTrue(players.containsKey(player), "Player is not added to this Global NPC");
+            else reset.accept(cA);
+        }
 
         public boolean isResetCustomAttributesWhenRemovePlayer() {
             return resetCustomAttributes;
@@ -1589,31 +1750,33 @@ public abstract class NPC {
             this.resetCustomAttributes = resetCustomAttributes;
         }
 
+        // The personal attributes take the references of the resolved values, mutable ones are copied only when the personal NPC changes them.
         private void updateAttributes(Player player){
             NPC.Personal personal = getPersonal(player);
             NPC.Attributes A = getAttributes();
-            NPC.Attributes cA = getCustomAttributes(player);
+            NPC.Attributes cA = customAttributes.getOrDefault(player.getUniqueId(), NO_CUSTOM_ATTRIBUTES);
             personal.updateGlobalLocation(this);
             if(ownPlayerSkin && (personal.getSkin().getPlayerName() == null || !personal.getSkin().getPlayerName().equals(player.getName()))) personal.setSkin(player, skin -> personal.forceUpdate());
             else personal.setSkin(cA.skin != null ? cA.skin : A.skin);
-            personal.setSkinParts(cA.skinParts != null ? cA.skinParts : A.skinParts);
-            personal.setCollidable(cA.collidable != null ? cA.collidable : A.collidable);
+            personal.getAttributes().shareSkinParts(cA.skinParts != null ? cA.skinParts : A.skinParts);
+            personal.setCollidable(cA.isFlagSet(Attributes.FLAG_COLLIDABLE) ? cA.isCollidable() : A.isCollidable());
             personal.setText(cA.text != null ? cA.text : A.text);
-            personal.setHideDistance(cA.hideDistance != null ? cA.hideDistance : A.hideDistance);
-            personal.setGlowing(cA.glowing != null ? cA.glowing : A.glowing);
+            personal.setHideDistance(!Double.isNaN(cA.hideDistance) ? cA.hideDistance : A.hideDistance);
+            personal.setGlowing(cA.isFlagSet(Attributes.FLAG_GLOWING) ? cA.isGlowing() : A.isGlowing());
             personal.setGlowingColor(cA.glowingColor != null ? cA.glowingColor : A.glowingColor);
             personal.setGazeTrackingType(cA.gazeTrackingType != null ? cA.gazeTrackingType : A.gazeTrackingType);
-            personal.setSlots((HashMap<Slot, ItemStack>) (cA.slots != null ? cA.slots : A.slots).clone());
+            personal.getAttributes().setSlots(cA.slots != null ? cA : A);
             personal.setCustomTabListName(cA.customTabListName != null ? cA.customTabListName : A.customTabListName);
-            personal.setShowOnTabList(cA.showOnTabList != null ? cA.showOnTabList : A.showOnTabList);
+            personal.setShowOnTabList(cA.isFlagSet(Attributes.FLAG_SHOW_ON_TAB_LIST) ? cA.isShowOnTabList() : A.isShowOnTabList());
             personal.setPose(cA.pose != null ? cA.pose : A.pose);
-            personal.setLineSpacing(cA.lineSpacing != null ? cA.lineSpacing : A.lineSpacing);
-            personal.setTextAlignment((cA.textAlignment != null ? cA.textAlignment : A.textAlignment).clone());
-            personal.setInteractCooldown(cA.interactCooldown != null ? cA.interactCooldown : A.interactCooldown);
+            personal.setLineSpacing(!Double.isNaN(cA.lineSpacing) ? cA.lineSpacing : A.lineSpacing);
+            personal.getAttributes().shareTextAlignment(cA.textAlignment != null ? cA.textAlignment : A.textAlignment);
+            personal.setInteractCooldown(cA.interactCooldown != Attributes.UNSET_INTERACT_COOLDOWN ? cA.interactCooldown : A.interactCooldown);
             personal.setTextOpacity(cA.textOpacity != null ? cA.textOpacity : A.textOpacity);
-            personal.setMoveSpeed(cA.moveSpeed != null ? cA.moveSpeed : A.moveSpeed);
-            personal.setOnFire(cA.onFire != null ? cA.onFire : A.onFire);
-            personal.setLinesOpacity((HashMap<Integer, Hologram.Opacity>) (cA.linesOpacity != null ? cA.linesOpacity : A.linesOpacity).clone());
+            personal.setHologramMode(cA.hologramMode != null ? cA.hologramMode : A.hologramMode);
+            personal.setMoveSpeed(!Double.isNaN(cA.moveSpeed) ? cA.moveSpeed : A.moveSpeed);
+            personal.setOnFire(cA.isFlagSet(Attributes.FLAG_ON_FIRE) ? cA.isOnFire() : A.isOnFire());
+            personal.getAttributes().shareLinesOpacity(cA.linesOpacity != null ? cA.linesOpacity : A.linesOpacity);
         }
 
         public void createAllPlayers(){
@@ -1635,6 +1798,10 @@ public abstract class NPC {
             forEachActivePlayer((player, npc) -> update(player));
         }
 
+        public void scheduleUpdate() {
+            forEachActivePlayer((player, npc) -> scheduleUpdate(player));
+        }
+
         @Override
         public void forceUpdate() {
             forEachActivePlayer((player, npc) -> forceUpdate(player));
@@ -1702,10 +1869,14 @@ public abstract class NPC {
             Validate.isTrue(Math.abs(moveX) < 8 && Math.abs(moveY) < 8 && Math.abs(moveZ) < 8, "NPC cannot move 8 blocks or more at once, use teleport instead");
             NPC.Events.Move npcMoveEvent = new NPC.Events.Move(this, new Location(super.world, super.x + moveX, super.y + moveY, super.z + moveZ));
             if(npcMoveEvent.isCancelled()) return;
+            // Computed once for every viewer, whose NPCs are at the same position. Viewers do not call their own Move event.
+            short deltaX = getMoveDelta(super.x, moveX);
+            short deltaY = getMoveDelta(super.y, moveY);
+            short deltaZ = getMoveDelta(super.z, moveZ);
             super.x += moveX;
             super.y += moveY;
             super.z += moveZ;
-            forEachActivePlayer((player, npc) -> npc.move(moveX, moveY, moveZ));
+            forEachActivePlayer((player, npc) -> npc.applyMove(moveX, moveY, moveZ, deltaX, deltaY, deltaZ));
         }
 
         @Override
@@ -1763,9 +1934,17 @@ public abstract class NPC {
             return players.get(player);
         }
 
+        /**
+         * Custom attributes are only allocated for players that have any, so this creates them if the player has none yet.
+         * Use {@link #hasCustomAttributes(Player)} to check them without creating them. The values that are unset fall through to the attributes of this Global NPC.
+         */
         public NPC.Attributes getCustomAttributes(Player player){
-            Validate.isTrue(customAttributes.containsKey(player.getUniqueId()), "Player is not added to this Global NPC");
-            return customAttributes.get(player.getUniqueId());
+            Validate.isTrue(players.containsKey(player) || customAttributes.containsKey(player.getUniqueId()), "Player is not added to this Global NPC");
+            return customAttributes.computeIfAbsent(player.getUniqueId(), x-> new Attributes(null));
+        }
+
+        public boolean hasCustomAttributes(Player player){
+            return customAttributes.containsKey(player.getUniqueId());
         }
 
         protected void np(Entity entity){
@@ -1865,7 +2044,8 @@ public abstract class NPC {
                     }
                     global.setSkin(texture, signature);
                 }
-                else if(config.contains("skin.player")) global.setSkin(config.getString("skin.player"), skin -> global.forceUpdate());
+                // Skins of the loaded NPCs are refreshed in background, the NPCs being seen fetch theirs first.
+                else if(config.contains("skin.player")) global.setSkin(config.getString("skin.player"), skin -> global.forceUpdate(), Skin.FetchPriority.LOW);
                 if(config.contains("hologram.text")){
                     List<String> lines = config.getStringList("hologram.text");
                     if(lines != null && lines.size() > 0){
@@ -1875,6 +2055,7 @@ public abstract class NPC {
                     }
                 }
                 if(config.contains("hologram.textOpacity")) global.setTextOpacity(Hologram.Opacity.valueOf(config.getString("hologram.textOpacity")));
+                if(config.contains("hologram.mode")) global.setHologramMode(Hologram.Mode.getMode(config.getString("hologram.mode")));
                 if(config.getConfigurationSection("hologram.linesOpacity") != null){
                     for(String line : config.getConfigurationSection("hologram.linesOpacity").getKeys(false)) global.setLineOpacity(Integer.valueOf(line), Hologram.Opacity.valueOf(config.getString("hologram.linesOpacity." + line)));
                 }
@@ -1981,8 +2162,9 @@ public abstract class NPC {
                 } else config.set("hologram.text", lines);
                 config.set("hologram.lineSpacing", global.getLineSpacing());
                 config.set("hologram.textOpacity", global.getTextOpacity().name());
+                config.set("hologram.mode", global.getHologramMode().name());
                 config.set("hologram.linesOpacity", null);
-                for(Integer line : global.getLinesOpacity().keySet()) config.set("hologram.linesOpacity." + line, global.getLineOpacity(line).name());
+                for(Map.Entry<Integer, NPC.Hologram.Opacity> line : global.getLinesOpacity().entrySet()) config.set("hologram.linesOpacity." + line.getKey(), line.getValue().name());
                 config.set("hologram.alignment", global.getTextAlignment());
                 config.set("gazeTracking.type", global.getGazeTrackingType().name());
                 config.set("pose", global.getPose().name());
@@ -1993,7 +2175,7 @@ public abstract class NPC {
                 config.set("tabList.show", global.isShowOnTabList());
                 config.set("tabList.name", global.getCustomTabListName().replaceAll("§", "&"));
                 config.set("move.speed", global.getMoveSpeed());
-                Arrays.stream(Slot.values()).forEach(x-> config.set("slots." + x.name().toLowerCase(), global.getSlots().get(x)));
+                Arrays.stream(Slot.values()).forEach(x-> config.set("slots." + x.name().toLowerCase(), global.getEquipment(x)));
                 config.set("onFire", global.isOnFire());
                 config.set("interact.cooldown", global.getInteractCooldown());
                 config.set("interact.actions", null);
@@ -2361,18 +2543,29 @@ public abstract class NPC {
 
         protected static final Skin STEVE;
         protected static final Skin ALEX;
-        protected static final HashMap<String, NPC.Skin> SKIN_CACHE;
-        protected static final List<String> LOCAL_SKIN_NAMES;
+        protected static final NPC.Skin.Cache SKIN_CACHE;
+        protected static final SkinStore SKIN_STORE;
+        private static final Map<String, FetchTask> FETCHES_IN_FLIGHT = new ConcurrentHashMap<>();
+        private static final AtomicLong FETCHES_COALESCED = new AtomicLong();
+        private static final ThreadPoolExecutor FETCH_EXECUTOR;
 
         static{
-            SKIN_CACHE = new HashMap<>();
+            // Skin fetches block on files and Mojang requests, so they have their own pool instead of using the Bukkit async one.
+            AtomicInteger threads = new AtomicInteger();
+            FETCH_EXECUTOR = new ThreadPoolExecutor(4, 4, 30L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "PlayerNPC Skin Fetch #" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            FETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+            SKIN_CACHE = new NPC.Skin.Cache(4096 * 1024L);
             STEVE = new Skin(
                     "ewogICJ0aW1lc3RhbXAiIDogMTY1NjUzMDcyOTgyNiwKICAicHJvZmlsZUlkIiA6ICJjMDZmODkwNjRjOGE0OTExOWMyOWVhMWRiZDFhYWI4MiIsCiAgInByb2ZpbGVOYW1lIiA6ICJNSEZfU3RldmUiLAogICJzaWduYXR1cmVSZXF1aXJlZCIgOiB0cnVlLAogICJ0ZXh0dXJlcyIgOiB7CiAgICAiU0tJTiIgOiB7CiAgICAgICJ1cmwiIDogImh0dHA6Ly90ZXh0dXJlcy5taW5lY3JhZnQubmV0L3RleHR1cmUvMWE0YWY3MTg0NTVkNGFhYjUyOGU3YTYxZjg2ZmEyNWU2YTM2OWQxNzY4ZGNiMTNmN2RmMzE5YTcxM2ViODEwYiIKICAgIH0KICB9Cn0=",
                     "D5KDlE7KmMYeo+n0bY7kRjxdoZ8ondpgLC0tVcDW/wER9tRAWGlkaUyC4cUjkiYtMFANOxnPNz42iWg+gKAX/qE3lKoJpFw8LmgC587QpEDZTsIwzrIriDDiUc+RQ83VNzy9lkrzm+/llFhuPmONhWIeoVgXQYnJXFXOjTA3uiqHq6IJR4fZzD+0lSpr8jm0X1B+XAiAV7xbzMjg2woC3ur7+81Ub27MNGdAmI5eh50rqqjIHx+kRHJPPB3klbAdkTkcnF2rhDuP9jLtJbb17L+40yR8MH3G1AsRBg+N9MlGb4qF3fK9m2lDNxrGpVe+5fj4ffHnTJ680X9O8cnGxtHFyHm3I65iIhVgFY/DQQ6XSxLgPrmdyVOV98OATc7g2/fFpiI6aRzFrXvCLzXcBzmcayhv8BgG8yBlHdYmMZScjslLKjgWB9mgtOh5ZFFb3ZRkwPvdKUqCQHDPovo9K3LwyAtg9QwJ7u+HN03tpDWllXIjT3mKrtsfWMorNNQ5Bh1St0If4Dg00tpW/DUwNs+oua0PhN/DbFEe3aog2jVfzy3IAXqW2cqiZlnRSm55vMrr1CI45PgjP2LS1c9OYJJ3k+ov4IdvBpDTiG9PfsPWcwtqm8ujxy/TqIWfSajL/RP+TFDoN/F8j8HhHU8wwA9JXJekmvUExEOxPWwisLA=");
             STEVE.playerName = "MHF_Steve";
             STEVE.playerUUID = "c06f89064c8a49119c29ea1dbd1aab82";
             STEVE.obtainedFrom = ObtainedFrom.MINECRAFT_ORIGINAL;
-            SKIN_CACHE.put(STEVE.playerName.toLowerCase(), STEVE);
+            SKIN_CACHE.pin(STEVE.playerName.toLowerCase(), STEVE);
             //
             ALEX = new Skin(
                     "ewogICJ0aW1lc3RhbXAiIDogMTY1NjU3Nzg5MTQ2NywKICAicHJvZmlsZUlkIiA6ICI2YWI0MzE3ODg5ZmQ0OTA1OTdmNjBmNjdkOWQ3NmZkOSIsCiAgInByb2ZpbGVOYW1lIiA6ICJNSEZfQWxleCIsCiAgInNpZ25hdHVyZVJlcXVpcmVkIiA6IHRydWUsCiAgInRleHR1cmVzIiA6IHsKICAgICJTS0lOIiA6IHsKICAgICAgInVybCIgOiAiaHR0cDovL3RleHR1cmVzLm1pbmVjcmFmdC5uZXQvdGV4dHVyZS84M2NlZTVjYTZhZmNkYjE3MTI4NWFhMDBlODA0OWMyOTdiMmRiZWJhMGVmYjhmZjk3MGE1Njc3YTFiNjQ0MDMyIiwKICAgICAgIm1ldGFkYXRhIiA6IHsKICAgICAgICAibW9kZWwiIDogInNsaW0iCiAgICAgIH0KICAgIH0KICB9Cn0=",
@@ -2380,17 +2573,14 @@ public abstract class NPC {
             ALEX.playerName = "MHF_Alex";
             ALEX.playerUUID = "6ab4317889fd490597f60f67d9d76fd9";
             ALEX.obtainedFrom = ObtainedFrom.MINECRAFT_ORIGINAL;
-            SKIN_CACHE.put(ALEX.playerName.toLowerCase(), ALEX);
+            SKIN_CACHE.pin(ALEX.playerName.toLowerCase(), ALEX);
             //
-            LOCAL_SKIN_NAMES = new ArrayList<>();
-            Bukkit.getScheduler().runTaskAsynchronously(PlayerNPCPlugin.getInstance(), () ->{
-                File folder = new File(getSkinsFolderPath());
-                if(!folder.exists() || !folder.isDirectory()) return;
-                for (File skin : folder.listFiles()) {
-                    if (!skin.isDirectory()) continue;
-                    LOCAL_SKIN_NAMES.add(skin.getName());
-                }
+            SKIN_STORE = new SkinStore(new File(getSkinsFolderPath()));
+            Bukkit.getScheduler().runTaskAsynchronously(PlayerNPCPlugin.getInstance(), () -> {
+                SKIN_STORE.open();
+                SKIN_STORE.compactIfNeeded();
             });
+            MojangAPI.loadUUIDCacheAsync();
         }
 
         private String texture;
@@ -2398,14 +2588,19 @@ public abstract class NPC {
         private String textureID;
         private String playerName;
         private String playerUUID;
-        private net.md_5.bungee.api.ChatColor[][] avatar;
-        private net.md_5.bungee.api.ChatColor mostCommonColor;
+        private volatile net.md_5.bungee.api.ChatColor[][] avatar;
+        private volatile net.md_5.bungee.api.ChatColor mostCommonColor;
+        private volatile int[] avatarPixels;
+        private final Property textureProperty;
+        private FetchTask avatarTask;
         private ObtainedFrom obtainedFrom;
         private String lastUpdate;
+        private long lastUpdateMillis;
 
         protected Skin(String texture, String signature){
             this.texture = texture;
             this.signature = signature;
+            this.textureProperty = new Property("textures", texture, signature);
             this.textureID = null;
             this.playerName = null;
             this.playerUUID = null;
@@ -2460,6 +2655,14 @@ public abstract class NPC {
             return lastUpdate;
         }
 
+        public long getLastUpdateMillis() {
+            return lastUpdateMillis;
+        }
+
+        protected boolean isExpired(NPCLib.SkinUpdateFrequency frequency){
+            return System.currentTimeMillis() - lastUpdateMillis >= frequency.toMillis();
+        }
+
         public boolean canBeDeleted() {
             return !isMinecraftOriginal();
         }
@@ -2476,6 +2679,7 @@ public abstract class NPC {
 
         private void resetLastUpdate(){
             this.lastUpdate = TimerUtils.getCurrentDate();
+            this.lastUpdateMillis = System.currentTimeMillis();
         }
 
         private File getAvatarFile(){
@@ -2486,10 +2690,6 @@ public abstract class NPC {
             return getTextureFile(this.playerName);
         }
 
-        private File getDataFile(){
-            return getDataFile(this.playerName);
-        }
-
         private String getSkinFolderPath(){
             return getSkinFolderPath(this.playerName);
         }
@@ -2502,10 +2702,6 @@ public abstract class NPC {
             return new File(getSkinFolderPath(playerName) + "/texture.png");
         }
 
-        private static File getDataFile(String playerName){
-            return new File(getSkinFolderPath(playerName) + "/data.yml");
-        }
-
         private static String getSkinFolderPath(String playerName){
             return getSkinsFolderPath() + playerName.toLowerCase();
         }
@@ -2551,27 +2747,16 @@ public abstract class NPC {
         protected boolean loadAvatarPixels(){
             try{
                 BufferedImage bufferedImage = ImageIO.read(getAvatarFile());
-                net.md_5.bungee.api.ChatColor[][] avatarData = new net.md_5.bungee.api.ChatColor[8][8];
-                Map m = new HashMap();
+                int[] pixels = new int[64];
                 boolean loaded = false;
                 for(int y = 0; y < 8; y++) {
                     for (int x = 0; x < 8; x++) {
-                        int color = bufferedImage.getRGB(x, y);
-                        int[] rgb = ColorUtils.getRGB(color);
-                        if(rgb[0] > 0 && rgb[1] > 0 && rgb[2] > 0) loaded = true;
-                        avatarData[x][y] = net.md_5.bungee.api.ChatColor.of(ColorUtils.getColorFromRGB(rgb));
-                        if (!ColorUtils.isGray(rgb)) {
-                            Integer counter = (Integer) m.get(color);
-                            if (counter == null)
-                                counter = 0;
-                            counter++;
-                            m.put(color, counter);
-                        }
+                        int color = bufferedImage.getRGB(x, y) & 0xFFFFFF;
+                        if((color >> 16 & 0xFF) > 0 && (color >> 8 & 0xFF) > 0 && (color & 0xFF) > 0) loaded = true;
+                        pixels[x * 8 + y] = color;
                     }
                 }
-                this.avatar = avatarData;
-                java.awt.Color mostCommon = ColorUtils.getMostCommonColour(m);
-                if(mostCommon != null) this.mostCommonColor = net.md_5.bungee.api.ChatColor.of(mostCommon);
+                setAvatarPixels(pixels, getMostCommonPixel(pixels));
                 return loaded;
             }
             catch (Exception e){
@@ -2580,6 +2765,40 @@ public abstract class NPC {
             }
         }
 
+        // There are only 64 pixels, so the histogram is two parallel arrays of the distinct colors and their counts.
+        private static int getMostCommonPixel(int[] pixels){
+            int[] colors = new int[pixels.length];
+            int[] counts = new int[pixels.length];
+            int distinct = 0;
+            int mostCommon = -1;
+            int mostCommonCount = 0;
+            int[] rgb = new int[3];
+            for(int color : pixels){
+                rgb[0] = color >> 16 & 0xFF;
+                rgb[1] = color >> 8 & 0xFF;
+                rgb[2] = color & 0xFF;
+                if(ColorUtils.isGray(rgb)) continue;
+                int i = 0;
+                while(i < distinct && colors[i] != color) i++;
+                if(i == distinct){
+                    colors[distinct++] = color;
+                }
+                if(++counts[i] > mostCommonCount){
+                    mostCommonCount = counts[i];
+                    mostCommon = color;
+                }
+            }
+            return mostCommon;
+        }
+
+        private void setAvatarPixels(int[] pixels, int mostCommon){
+            net.md_5.bungee.api.ChatColor[][] avatarData = new net.md_5.bungee.api.ChatColor[8][8];
+            for(int i = 0; i < 64; i++) avatarData[i / 8][i % 8] = net.md_5.bungee.api.ChatColor.of(new java.awt.Color(pixels[i]));
+            this.avatarPixels = pixels;
+            if(mostCommon >= 0) this.mostCommonColor = net.md_5.bungee.api.ChatColor.of(new java.awt.Color(mostCommon));
+            this.avatar = avatarData;
+        }
+
         protected void downloadAvatar(boolean uuid){
             if(playerUUID == null || playerName == null) return;
             try{
@@ -2591,13 +2810,59 @@ public abstract class NPC {
             catch (Exception e){ NPCLib.printError(e);; }
         }
 
-        public net.md_5.bungee.api.ChatColor[][] getAvatar() {
-            if(avatar == null) loadAvatar();
-            return avatar;
+        /**
+         * The first time, it blocks until the avatar is computed. From the main thread, use {@link #getAvatarAsync()} instead.
+         *
+         * @return null if the skin has no player to take the avatar from, or it could not be downloaded.
+         */
+        public @Nullable net.md_5.bungee.api.ChatColor[][] getAvatar() {
+            net.md_5.bungee.api.ChatColor[][] avatar = this.avatar;
+            if(avatar != null || playerName == null) return avatar;
+            CompletableFuture<net.md_5.bungee.api.ChatColor[][]> future = getAvatarAsync();
+            FetchTask task;
+            synchronized (this){ task = avatarTask; }
+            // A task that is still waiting is run here, so fetch threads waiting for avatars cannot block the whole pool.
+            if(task != null && FETCH_EXECUTOR.getQueue().remove(task)) task.run();
+            return future.join();
+        }
+
+        /**
+         * The avatar is downloaded and computed once, on the skin fetch executor, and saved with the skin so it is not computed again after a restart.
+         * The future completes with null if the skin has no player to take the avatar from, or it could not be downloaded.
+         */
+        public synchronized CompletableFuture<net.md_5.bungee.api.ChatColor[][]> getAvatarAsync() {
+            if(avatar != null || playerName == null) return CompletableFuture.completedFuture(avatar);
+            FetchTask task = avatarTask;
+            if(task == null){
+                final FetchTask newTask = new FetchTask("avatar:" + playerName.toLowerCase(), FetchPriority.NORMAL);
+                newTask.fetch = () -> {
+                    try{
+                        loadAvatar();
+                        if(avatarPixels != null && SKIN_STORE.contains(playerName)) SKIN_STORE.put(playerName.toLowerCase(), this);
+                    }
+                    catch (Exception e){ NPCLib.printError(e); }
+                    return this;
+                };
+                newTask.future.whenComplete((skin, e) -> {
+                    synchronized (this){ if(avatarTask == newTask) avatarTask = null; }
+                });
+                avatarTask = task = newTask;
+                try{ FETCH_EXECUTOR.execute(task); }
+                catch (RejectedExecutionException e){ task.future.completeExceptionally(e); }
+            }
+            // The avatar fields are volatile and set before the task completes.
+            return task.future.handle((skin, e) -> avatar);
         }
 
         public String[] getTextureData() { return new String[]{texture, signature}; }
 
+        /**
+         * The texture and signature never change, so one Property is shared by the game profiles of every NPC with this skin.
+         */
+        protected Property getTextureProperty() {
+            return textureProperty;
+        }
+
         public String getTextureID() {
             return textureID;
         }
@@ -2630,100 +2895,204 @@ public abstract class NPC {
         }
 
         public static void fetchSkinAsync(Plugin plugin, String playerName, boolean forceDownload, Consumer<NPC.Skin> action){
+            fetchSkin(plugin, playerName, forceDownload, FetchPriority.NORMAL).whenComplete((skin, e) -> {
+                if(e != null && e.getCause() instanceof Exception exception) NPCLib.printError(exception);
+                acceptSkin(action, e == null ? skin : null);
+            });
+        }
+
+        public static CompletableFuture<NPC.Skin> fetchSkin(Plugin plugin, Player player){
+            return fetchSkin(plugin, player.getName(), false, FetchPriority.NORMAL);
+        }
+
+        public static CompletableFuture<NPC.Skin> fetchSkin(Plugin plugin, String playerName){
+            return fetchSkin(plugin, playerName, false, FetchPriority.NORMAL);
+        }
+
+        /**
+         * Fetches the skin on the skin fetch executor. The future completes exceptionally if the skin could not be obtained.
+         * Continuations run on the fetch thread, use {@link NPCLib.PluginManager#getMainThreadExecutor()} to continue on the main thread.
+         *
+         * @param priority fetches with higher priority are done first when there are fetches waiting.
+         */
+        public static CompletableFuture<NPC.Skin> fetchSkin(@Nonnull Plugin plugin, @Nonnull String playerName, boolean forceDownload, @Nonnull FetchPriority priority){
+            Validate.notNull(plugin, "Plugin must not be null");
+            Validate.notNull(playerName, "Player name must not be null");
+            Validate.notNull(priority, "Fetch priority must not be null");
             final NPCLib.PluginManager pluginManager = NPCLib.getInstance().getPluginManager(plugin);
             final String playerNameLowerCase = playerName.toLowerCase();
             final String possibleUUID = playerName.length() >= 32 ? playerName.replaceAll("-", "") : null;
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, ()->{
-                if(!forceDownload && possibleUUID == null){
-                    if(SKIN_CACHE.containsKey(playerNameLowerCase)) {
-                        Skin skin = SKIN_CACHE.get(playerNameLowerCase);
-                        NPCLib.SkinUpdateFrequency frequency = pluginManager.getSkinUpdateFrequency();
-                        if(TimerUtils.getBetweenDatesString(skin.getLastUpdate(), TimerUtils.getCurrentDate(), TimerUtils.DATE_FORMAT_LARGE, frequency.timeUnit()) < frequency.value()){
-                            action.accept(skin);
-                            return;
-                        }
-                        else SKIN_CACHE.remove(playerNameLowerCase);
-                    }
-                    if(getDataFile(playerNameLowerCase).exists()){
-                        YamlConfiguration config = loadConfig(playerNameLowerCase);
-                        String lastUpdate = config.getString("lastUpdate");
-                        NPCLib.SkinUpdateFrequency frequency = pluginManager.getSkinUpdateFrequency();
-                        if(TimerUtils.getBetweenDatesString(lastUpdate, TimerUtils.getCurrentDate(), TimerUtils.DATE_FORMAT_LARGE, frequency.timeUnit()) < frequency.value()){
-                            Skin skin = new Skin(config.getString("texture.value"), config.getString("texture.signature"));
-                            skin.playerName = config.getString("player.name");
-                            skin.playerUUID = config.getString("player.id");
-                            skin.textureID = config.getString("texture.id");
-                            skin.obtainedFrom = ObtainedFrom.valueOf(config.getString("obtainedFrom"));
-                            skin.lastUpdate = config.getString("lastUpdate");
-                            SKIN_CACHE.put(playerNameLowerCase, skin);
-                            LOCAL_SKIN_NAMES.remove(playerName.toLowerCase());
-                            action.accept(skin);
-                            return;
-                        }
-                    }
+            final NPCLib.SkinUpdateFrequency frequency = pluginManager.getSkinUpdateFrequency();
+            // Fetches of the same name or UUID at the same time are done once, and every consumer gets the same skin.
+            // Name fetches can return a stored skin if it is fresh enough, so they are only shared by plugins with the same skin update frequency.
+            final String key = forceDownload ? "+" + (possibleUUID != null ? possibleUUID.toLowerCase() : playerNameLowerCase)
+                    : possibleUUID != null ? possibleUUID.toLowerCase() : playerNameLowerCase + "@" + frequency.toMillis();
+            FetchTask task = new FetchTask(key, priority);
+            task.fetch = () -> loadSkin(task, frequency, playerName, playerNameLowerCase, possibleUUID, forceDownload);
+            FetchTask inFlight = FETCHES_IN_FLIGHT.putIfAbsent(key, task);
+            if(inFlight != null){
+                FETCHES_COALESCED.incrementAndGet();
+                inFlight.promote(priority);
+                return inFlight.future.copy();
+            }
+            // Names that will be downloaded are queued now, so the names of every NPC loaded together are resolved in bulk.
+            // Stored skins already know their UUID, even the ones taken from the game profile.
+            if(possibleUUID == null && !SKIN_STORE.contains(playerNameLowerCase) && Bukkit.getServer().getPlayerExact(playerName) == null) MojangAPI.requestUUID(playerName);
+            try{ FETCH_EXECUTOR.execute(task); }
+            catch (RejectedExecutionException e){
+                FETCHES_IN_FLIGHT.remove(key, task);
+                task.future.completeExceptionally(e);
+            }
+            return task.future.copy();
+        }
+
+        protected static void shutdownFetchExecutor(){
+            FETCH_EXECUTOR.shutdownNow();
+            MojangAPI.shutdown();
+        }
+
+        private static void acceptSkin(Consumer<NPC.Skin> action, NPC.Skin skin){
+            try{ action.accept(skin); }
+            catch (Exception e){ NPCLib.printError(e); }
+        }
+
+        private static NPC.Skin loadSkin(FetchTask task, NPCLib.SkinUpdateFrequency frequency, String playerName, String playerNameLowerCase, String possibleUUID, boolean forceDownload) throws Exception {
+            Skin stored = null;
+            if(!forceDownload && possibleUUID == null){
+                Skin cached = SKIN_CACHE.get(playerNameLowerCase, frequency);
+                if(cached != null) return cached;
+                stored = SKIN_STORE.get(playerNameLowerCase);
+                if(stored != null && !stored.isExpired(frequency)){
+                    SKIN_CACHE.put(playerNameLowerCase, stored);
+                    return stored;
                 }
-                Player player = possibleUUID == null ? Bukkit.getServer().getPlayerExact(playerName) : null;
-                if(Bukkit.getServer().getOnlineMode() && player != null){
-                    Skin skin = new Skin(getSkinGameProfile(player));
-                    skin.playerName = player.getName();
-                    skin.playerUUID = player.getUniqueId().toString().replaceAll("-", "");
-                    skin.obtainedFrom = ObtainedFrom.GAME_PROFILE;
-                    try { skin.saveSkin(); } catch (IOException e) { NPCLib.printError(e); }
-                    if(skin.getAvatarFile().exists()) skin.getAvatarFile().delete();
-                    SKIN_CACHE.put(playerNameLowerCase, skin);
-                    action.accept(skin);
-                    return;
+            }
+            Player player = possibleUUID == null ? Bukkit.getServer().getPlayerExact(playerName) : null;
+            if(Bukkit.getServer().getOnlineMode() && player != null){
+                Skin skin = new Skin(getSkinGameProfile(player));
+                skin.playerName = player.getName();
+                skin.playerUUID = player.getUniqueId().toString().replaceAll("-", "");
+                skin.obtainedFrom = ObtainedFrom.GAME_PROFILE;
+                try { skin.saveSkin(); } catch (IOException e) { NPCLib.printError(e); }
+                if(skin.getAvatarFile().exists()) skin.getAvatarFile().delete();
+                SKIN_CACHE.put(playerNameLowerCase, skin);
+                return skin;
+            }
+            String uuid = possibleUUID;
+            HashMap<String, String> data = null;
+            if(uuid == null){
+                // The UUID of a stored skin is known, unless the name now belongs to another player.
+                if(stored == null) stored = SKIN_STORE.get(playerNameLowerCase);
+                if(stored != null && stored.playerUUID != null){
+                    try{ data = getProfileMojangServer(stored.playerUUID); }
+                    catch (IOException e){ data = null; }
+                    if(data != null && !playerName.equalsIgnoreCase(data.get("name"))) data = null;
                 }
-                else{
-                    try {
-                        String uuid = possibleUUID == null ? getUUID(playerName) : possibleUUID;
-                        HashMap<String, String> data = getProfileMojangServer(uuid);
-                        Skin skin = new Skin(data.get("texture.value"), data.get("texture.signature"));
-                        skin.playerName = data.get("name");
-                        skin.playerUUID = data.get("id");
-                        skin.obtainedFrom = ObtainedFrom.MOJANG_API;
-                        skin.saveSkin();
-                        if(skin.getAvatarFile().exists()) skin.getAvatarFile().delete();
-                        SKIN_CACHE.put(playerNameLowerCase, skin);
-                        action.accept(skin);
-                    }
-                    catch (Exception e) {
-                        NPCLib.printError(e);
-                        action.accept(null);
-                    }
+                if(data == null){
+                    // The fetch thread is not blocked while the name waits for its bulk request.
+                    CompletableFuture<String> request = MojangAPI.requestUUID(playerName);
+                    if(!request.isDone()) return task.resumeAfter(request, () -> downloadSkin(playerNameLowerCase, MojangAPI.getUUID(request, playerName), null));
+                    uuid = MojangAPI.getUUID(request, playerName);
                 }
-            });
+            }
+            return downloadSkin(playerNameLowerCase, uuid, data);
+        }
+
+        private static NPC.Skin downloadSkin(String playerNameLowerCase, String uuid, HashMap<String, String> data) throws IOException {
+            if(data == null) data = getProfileMojangServer(uuid);
+            MojangAPI.putUUID(data.get("name"), data.get("id"));
+            Skin skin = new Skin(data.get("texture.value"), data.get("texture.signature"));
+            skin.playerName = data.get("name");
+            skin.playerUUID = data.get("id");
+            skin.obtainedFrom = ObtainedFrom.MOJANG_API;
+            skin.saveSkin();
+            if(skin.getAvatarFile().exists()) skin.getAvatarFile().delete();
+            SKIN_CACHE.put(playerNameLowerCase, skin);
+            return skin;
+        }
+
+        /**
+         * @return how many skin fetches have been served by another fetch of the same name or UUID that was already in progress.
+         */
+        public static long getCoalescedFetches(){
+            return FETCHES_COALESCED.get();
         }
 
         public void delete(){
             if(!canBeDeleted()) throw new IllegalStateException("This skin cannot be deleted.");
             String playerNameLowerCase = playerName.toLowerCase();
-            if(SKIN_CACHE.containsKey(playerNameLowerCase)) SKIN_CACHE.remove(playerNameLowerCase);
+            SKIN_CACHE.remove(playerNameLowerCase);
+            SKIN_STORE.remove(playerNameLowerCase);
             File folder = new File(getSkinFolderPath(playerNameLowerCase) + "/");
             try { FileUtils.deleteDirectory(folder); } catch (IOException e) { NPCLib.printError(e); }
-            if(LOCAL_SKIN_NAMES.contains(playerNameLowerCase)) LOCAL_SKIN_NAMES.remove(playerNameLowerCase);
         }
 
-        private static YamlConfiguration loadConfig(String playerName){
-            File file = getDataFile(playerName);
-            boolean exist = file.exists();
-            if(!exist) try{ file.createNewFile();} catch (Exception e){};
+        /**
+         * Writes the skin as a record of the skin store.
+         */
+        protected void write(DataOutputStream out) throws IOException {
+            writeString(out, playerName);
+            writeString(out, playerUUID);
+            writeString(out, texture);
+            writeString(out, signature);
+            writeString(out, textureID);
+            writeString(out, obtainedFrom.name());
+            writeString(out, lastUpdate);
+            out.writeLong(lastUpdateMillis);
+            int[] avatarPixels = this.avatarPixels;
+            out.writeBoolean(avatarPixels != null);
+            if(avatarPixels != null){
+                for(int pixel : avatarPixels) out.writeInt(pixel);
+                out.writeInt(mostCommonColor != null ? mostCommonColor.getColor().getRGB() & 0xFFFFFF : -1);
+            }
+        }
+
+        protected static Skin read(DataInputStream in) throws IOException {
+            String playerName = readString(in);
+            String playerUUID = readString(in);
+            Skin skin = new Skin(readString(in), readString(in));
+            skin.playerName = playerName;
+            skin.playerUUID = playerUUID;
+            skin.textureID = readString(in);
+            skin.obtainedFrom = ObtainedFrom.valueOf(readString(in));
+            skin.lastUpdate = readString(in);
+            skin.lastUpdateMillis = in.readLong();
+            // Records saved before avatars were stored end here.
+            if(in.available() > 0 && in.readBoolean()){
+                int[] pixels = new int[64];
+                for(int i = 0; i < pixels.length; i++) pixels[i] = in.readInt();
+                skin.setAvatarPixels(pixels, in.readInt());
+            }
+            return skin;
+        }
+
+        /**
+         * Reads a skin saved by older versions in the data.yml file of its own folder.
+         */
+        protected static Skin readLegacy(File file){
             YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
-            return config;
+            Skin skin = new Skin(config.getString("texture.value"), config.getString("texture.signature"));
+            skin.playerName = config.getString("player.name");
+            skin.playerUUID = config.getString("player.id");
+            skin.textureID = config.getString("texture.id");
+            skin.obtainedFrom = ObtainedFrom.valueOf(config.getString("obtainedFrom"));
+            skin.lastUpdate = config.getString("lastUpdate");
+            // Skins saved before lastUpdateMillis existed only have the date string.
+            skin.lastUpdateMillis = config.contains("lastUpdateMillis") ? config.getLong("lastUpdateMillis") : System.currentTimeMillis() - TimerUtils.getBetweenDatesString(skin.lastUpdate, TimerUtils.getCurrentDate(), TimerUtils.DATE_FORMAT_LARGE, TimeUnit.SECONDS) * 1000L;
+            return skin;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if(value != null) out.writeUTF(value);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
         }
 
         private void saveSkin() throws IOException {
-            File file = getDataFile();
-            boolean exist = file.exists();
-            if(!exist) try{ file.createNewFile(); }catch (Exception e){}
-            YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
-            config.set("player.name", this.playerName);
-            config.set("player.id", this.playerUUID);
-            config.set("texture.value", this.texture);
-            config.set("texture.signature", this.signature);
-            config.set("obtainedFrom", this.obtainedFrom.name());
             resetLastUpdate();
-            config.set("lastUpdate", this.lastUpdate);
             String textureURL = null;
             try{
                 byte[] decodedBytes = Base64.getDecoder().decode(this.texture);
@@ -2732,14 +3101,11 @@ public abstract class NPC {
                 JsonObject textureElement = textureJSON.get("textures").getAsJsonObject();
                 textureURL = textureElement.get("SKIN").getAsJsonObject().get("url").getAsString();
                 if(textureURL != null){
-                    String textureID = textureURL.replaceFirst("http://textures.minecraft.net/texture/", "");
-                    config.set("texture.id", textureID);
-                    config.setComments("texture.id", Arrays.asList("Minecraft texture: " + textureURL));
-                    this.textureID = textureID;
+                    this.textureID = textureURL.replaceFirst("http://textures.minecraft.net/texture/", "");
                 }
             }
             catch (Exception e){ NPCLib.printError(e); }
-            config.save(file);
+            SKIN_STORE.put(this.playerName.toLowerCase(), this);
             if(textureURL == null) return;
             final String urlSkin = textureURL;
             Bukkit.getScheduler().runTaskAsynchronously(PlayerNPCPlugin.getInstance(), () ->{
@@ -2756,8 +3122,8 @@ public abstract class NPC {
         public static List<String> getSuggestedSkinNames(){
             List<String> suggested = new ArrayList<>();
             Bukkit.getOnlinePlayers().forEach(x-> suggested.add(x.getName().toLowerCase()));
-            Skin.SKIN_CACHE.keySet().stream().filter(x -> !suggested.contains(x)).forEach(x-> suggested.add(SKIN_CACHE.get(x).getPlayerName().toLowerCase()));
-            Skin.LOCAL_SKIN_NAMES.stream().filter(x -> !suggested.contains(x)).forEach(x-> suggested.add(x.toLowerCase()));
+            Skin.SKIN_CACHE.getSkins().stream().map(x-> x.getPlayerName().toLowerCase()).filter(x -> !suggested.contains(x)).forEach(x-> suggested.add(x));
+            Skin.SKIN_STORE.getNames().stream().filter(x -> !suggested.contains(x)).forEach(x-> suggested.add(x));
             return suggested;
         }
 
@@ -2778,9 +3144,7 @@ public abstract class NPC {
 
         private static HashMap<String, String> getProfileMojangServer(String uuid) throws IOException {
             HashMap<String, String> data = new HashMap<>();
-            URL url2 = new URL("https://sessionserver.mojang.com/session/minecraft/profile/" + uuid + "?unsigned=false");
-            InputStreamReader reader2 = new InputStreamReader(url2.openStream());
-            JsonObject profile = new JsonParser().parse(reader2).getAsJsonObject();
+            JsonObject profile = MojangAPI.getProfile(uuid);
             JsonObject property = profile.get("properties").getAsJsonArray().get(0).getAsJsonObject();
             data.put("id", profile.get("id").getAsString());
             data.put("name", profile.get("name").getAsString());
@@ -2789,57 +3153,699 @@ public abstract class NPC {
             return data;
         }
 
-        private static String getUUID(String name) throws IOException {
-            URL url = new URL("https://api.mojang.com/users/profiles/minecraft/" + name);
-            InputStreamReader reader = new InputStreamReader(url.openStream());
-            JsonObject property = new JsonParser().parse(reader).getAsJsonObject();
-            return property.get("id").getAsString();
-        }
-
         public static Skin getSteveSkin(){ return STEVE; }
 
         public static Skin getAlexSkin(){ return ALEX; }
 
+        public static NPC.Skin.Cache getCache(){ return SKIN_CACHE; }
+
+        public static SkinStore getStore(){ return SKIN_STORE; }
+
+        /**
+         * Requests to the Mojang API share one HttpClient, so connections are kept alive between requests.
+         * Requests are rate limited with a token bucket and retried with jittered backoff when Mojang answers 429 or fails.
+         */
+        public static class MojangAPI {
+
+            // Mojang allows around 600 requests every 10 minutes. Requests done before a restart still count,
+            // so the bucket starts with a sixth of them and a cold start bursts at most 100 requests.
+            private static final int BUCKET_CAPACITY = 600;
+            private static final int BUCKET_INITIAL_TOKENS = 100;
+            private static final Duration BUCKET_PERIOD = Duration.ofMinutes(10);
+            private static final int MAX_ATTEMPTS = 4;
+            private static final long BACKOFF_BASE_MILLIS = 500L;
+            private static final long BACKOFF_MAX_MILLIS = 30_000L;
+
+            // Names are resolved in bulk, up to 10 per request, collecting names for a short window.
+            private static final int BATCH_SIZE = 10;
+            private static final long BATCH_WINDOW_MILLIS = 50L;
+            private static final long UUID_EXPIRE_MILLIS = TimeUnit.DAYS.toMillis(1);
+            // Resolved UUIDs are saved at most once in this time, instead of after every request.
+            private static final long UUID_SAVE_DELAY_SECONDS = 30L;
+            private static final Map<String, CompletableFuture<String>> PENDING_UUIDS = new LinkedHashMap<>();
+            private static final Map<String, ResolvedUUID> UUID_CACHE = new ConcurrentHashMap<>();
+            private static final Map<String, String> NAME_CACHE = new ConcurrentHashMap<>();
+            private static final ScheduledExecutorService BATCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PlayerNPC UUID Batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            private static ScheduledFuture<?> batchFlush;
+            private static ScheduledFuture<?> uuidCacheSave;
+            private static boolean uuidCacheLoaded;
+            private static boolean uuidCacheChanged;
+
+            private static volatile String bulkProfilesURL = "https://api.mojang.com/profiles/minecraft";
+            private static volatile String profilesURL = "https://api.mojang.com/users/profiles/minecraft/";
+            private static volatile String sessionURL = "https://sessionserver.mojang.com/session/minecraft/profile/";
+            private static volatile Duration timeout = Duration.ofSeconds(10);
+            private static volatile HttpClient client = createClient();
+            private static volatile RateLimiter rateLimiter = new RateLimiter(BUCKET_CAPACITY, BUCKET_PERIOD, BUCKET_INITIAL_TOKENS);
+
+            private static HttpClient createClient(){
+                return HttpClient.newBuilder().connectTimeout(timeout).followRedirects(HttpClient.Redirect.NORMAL).build();
+            }
+
+            protected static JsonObject getProfile(String uuid) throws IOException {
+                return get(sessionURL + uuid + "?unsigned=false", "Profile of " + uuid);
+            }
+
+            /**
+             * Gets the result of a UUID request that is already done, so it never blocks.
+             */
+            protected static String getUUID(CompletableFuture<String> request, String name) throws IOException {
+                Validate.isTrue(request.isDone(), "UUID request of " + name + " is not done");
+                try{ return request.getNow(null); }
+                catch (CancellationException e){ throw new IOException("UUID request of " + name + " was cancelled", e); }
+                catch (CompletionException e){
+                    if(e.getCause() instanceof IOException exception) throw exception;
+                    throw new IOException(e.getCause());
+                }
+            }
+
+            /**
+             * Queues the name to be resolved in the next bulk request, unless its UUID is already known.
+             */
+            protected static CompletableFuture<String> requestUUID(String name){
+                String nameLowerCase = name.toLowerCase();
+                String resolved = getResolvedUUID(nameLowerCase);
+                if(resolved != null) return CompletableFuture.completedFuture(resolved);
+                synchronized (PENDING_UUIDS){
+                    CompletableFuture<String> pending = PENDING_UUIDS.get(nameLowerCase);
+                    if(pending != null) return pending;
+                    pending = new CompletableFuture<>();
+                    PENDING_UUIDS.put(nameLowerCase, pending);
+                    if(PENDING_UUIDS.size() >= BATCH_SIZE){
+                        if(batchFlush != null) batchFlush.cancel(false);
+                        batchFlush = BATCH_EXECUTOR.submit(MojangAPI::resolvePendingUUIDs);
+                    }
+                    else if(batchFlush == null) batchFlush = BATCH_EXECUTOR.schedule(MojangAPI::resolvePendingUUIDs, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                    return pending;
+                }
+            }
+
+            private static void resolvePendingUUIDs(){
+                Map<String, CompletableFuture<String>> batch = new HashMap<>();
+                synchronized (PENDING_UUIDS){
+                    Iterator<Map.Entry<String, CompletableFuture<String>>> iterator = PENDING_UUIDS.entrySet().iterator();
+                    while(iterator.hasNext() && batch.size() < BATCH_SIZE){
+                        Map.Entry<String, CompletableFuture<String>> entry = iterator.next();
+                        batch.put(entry.getKey(), entry.getValue());
+                        iterator.remove();
+                    }
+                    batchFlush = PENDING_UUIDS.isEmpty() ? null : BATCH_EXECUTOR.submit(MojangAPI::resolvePendingUUIDs);
+                }
+                // Names requested before the saved UUIDs were loaded may be known now.
+                batch.entrySet().removeIf(entry -> {
+                    String resolved = getResolvedUUID(entry.getKey());
+                    if(resolved != null) entry.getValue().complete(resolved);
+                    return resolved != null;
+                });
+                if(batch.isEmpty()) return;
+                try{
+                    if(batch.size() == 1){
+                        Map.Entry<String, CompletableFuture<String>> single = batch.entrySet().iterator().next();
+                        JsonObject profile = get(profilesURL + single.getKey(), "Player " + single.getKey());
+                        putUUID(profile.get("name").getAsString(), profile.get("id").getAsString());
+                        single.getValue().complete(profile.get("id").getAsString());
+                        return;
+                    }
+                    JsonArray names = new JsonArray();
+                    batch.keySet().forEach(names::add);
+                    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(bulkProfilesURL)).header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(names.toString()));
+                    JsonArray profiles = new JsonParser().parse(send(request, "Profiles")).getAsJsonArray();
+                    for(JsonElement element : profiles){
+                        JsonObject profile = element.getAsJsonObject();
+                        String name = profile.get("name").getAsString();
+                        String uuid = profile.get("id").getAsString();
+                        putUUID(name, uuid);
+                        CompletableFuture<String> future = batch.remove(name.toLowerCase());
+                        if(future != null) future.complete(uuid);
+                    }
+                    batch.forEach((name, future) -> future.completeExceptionally(new IOException("Player " + name + " was not found")));
+                }
+                catch (Exception e){ batch.values().forEach(x-> x.completeExceptionally(e)); }
+            }
+
+            protected static void putUUID(String name, String uuid){
+                if(name == null || uuid == null) return;
+                UUID_CACHE.put(name.toLowerCase(), new ResolvedUUID(uuid, name, System.currentTimeMillis()));
+                NAME_CACHE.put(uuid.replaceAll("-", "").toLowerCase(), name);
+                scheduleUUIDCacheSave();
+            }
+
+            private static String getResolvedUUID(String nameLowerCase){
+                ResolvedUUID resolved = UUID_CACHE.get(nameLowerCase);
+                if(resolved == null || System.currentTimeMillis() - resolved.resolvedMillis() >= UUID_EXPIRE_MILLIS) return null;
+                return resolved.uuid();
+            }
+
+            /**
+             * @return the UUID (without dashes) of the player name, if it has been resolved before.
+             */
+            public static @Nullable String getCachedUUID(@Nonnull String name){
+                ResolvedUUID resolved = UUID_CACHE.get(name.toLowerCase());
+                return resolved != null ? resolved.uuid() : null;
+            }
+
+            /**
+             * @return the last known name of the player UUID, if it has been resolved before.
+             */
+            public static @Nullable String getCachedName(@Nonnull String uuid){
+                return NAME_CACHE.get(uuid.replaceAll("-", "").toLowerCase());
+            }
+
+            private static File getUUIDCacheFile(){
+                return new File("plugins/PlayerNPC/persistent/uuids.yml");
+            }
+
+            /**
+             * Loads the saved UUIDs on the batch thread, so every bulk request done after it already knows them.
+             */
+            protected static void loadUUIDCacheAsync(){
+                try{ BATCH_EXECUTOR.execute(MojangAPI::loadUUIDCache); }
+                catch (RejectedExecutionException e){}
+            }
+
+            private static synchronized void loadUUIDCache(){
+                if(uuidCacheLoaded) return;
+                File file = getUUIDCacheFile();
+                if(file.exists()){
+                    YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+                    for(String key : config.getKeys(false)){
+                        String uuid = config.getString(key + ".id");
+                        String name = config.getString(key + ".name");
+                        if(uuid == null || name == null) continue;
+                        // UUIDs resolved while loading are newer than the saved ones.
+                        UUID_CACHE.putIfAbsent(key, new ResolvedUUID(uuid, name, config.getLong(key + ".resolvedMillis")));
+                        NAME_CACHE.putIfAbsent(uuid.toLowerCase(), name);
+                    }
+                }
+                uuidCacheLoaded = true;
+            }
+
+            private static synchronized void scheduleUUIDCacheSave(){
+                uuidCacheChanged = true;
+                if(uuidCacheSave != null && !uuidCacheSave.isDone()) return;
+                try{ uuidCacheSave = BATCH_EXECUTOR.schedule(MojangAPI::saveUUIDCache, UUID_SAVE_DELAY_SECONDS, TimeUnit.SECONDS); }
+                catch (RejectedExecutionException e){}
+            }
+
+            // The whole file is written, so it is only saved once the saved UUIDs have been loaded.
+            private static synchronized void saveUUIDCache(){
+                if(!uuidCacheLoaded || !uuidCacheChanged) return;
+                uuidCacheChanged = false;
+                File file = getUUIDCacheFile();
+                file.getParentFile().mkdirs();
+                YamlConfiguration config = new YamlConfiguration();
+                UUID_CACHE.forEach((key, resolved) -> {
+                    config.set(key + ".id", resolved.uuid());
+                    config.set(key + ".name", resolved.name());
+                    config.set(key + ".resolvedMillis", resolved.resolvedMillis());
+                });
+                try { config.save(file); } catch (IOException e) { NPCLib.printError(e); }
+            }
+
+            protected static void shutdown(){
+                BATCH_EXECUTOR.shutdownNow();
+                synchronized (PENDING_UUIDS){
+                    PENDING_UUIDS.values().forEach(x-> x.completeExceptionally(new RejectedExecutionException("PlayerNPC is disabled")));
+                    PENDING_UUIDS.clear();
+                }
+                saveUUIDCache();
+            }
+
+            protected static JsonObject get(String url, String what) throws IOException {
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).GET();
+                return new JsonParser().parse(send(request, what)).getAsJsonObject();
+            }
+
+            private static String send(HttpRequest.Builder builder, String what) throws IOException {
+                HttpRequest request = builder.timeout(timeout).header("Accept", "application/json").build();
+                String url = request.uri().toString();
+                IOException lastException = null;
+                for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+                    if(attempt > 0) sleep(lastException instanceof RetryException retry && retry.retryAfterMillis >= 0 ? retry.retryAfterMillis : backoff(attempt));
+                    acquire();
+                    HttpResponse<String> response;
+                    try{ response = client.send(request, HttpResponse.BodyHandlers.ofString()); }
+                    catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Request to " + url + " was interrupted", e);
+                    }
+                    catch (IOException e){
+                        lastException = e;
+                        continue;
+                    }
+                    int status = response.statusCode();
+                    if(status == 200) return response.body();
+                    if(status == 204 || status == 404) throw new IOException(what + " was not found");
+                    if(status != 429 && status < 500) throw new IOException("Mojang API answered " + status + " to " + url);
+                    lastException = new RetryException(status, url, response.headers().firstValue("Retry-After").map(MojangAPI::parseRetryAfter).orElse(-1L));
+                }
+                throw lastException;
+            }
+
+            private static long parseRetryAfter(String value){
+                try{ return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())); }
+                catch (NumberFormatException e){ return -1L; }
+            }
+
+            // Full jitter: a random wait between 0 and the exponential backoff.
+            private static long backoff(int attempt){
+                long max = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << attempt);
+                return ThreadLocalRandom.current().nextLong(max + 1);
+            }
+
+            private static void acquire() throws IOException {
+                rateLimiter.await();
+            }
+
+            private static void sleep(long millis) throws IOException {
+                try{ Thread.sleep(millis); }
+                catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Mojang API request was interrupted", e);
+                }
+            }
+
+            /**
+             * @return approximate requests that can be done now without waiting for the rate limit.
+             */
+            public static int getAvailableRequests(){
+                return rateLimiter.getAvailable();
+            }
+
+            protected static RateLimiter getRateLimiter() { return rateLimiter; }
+
+            protected static void setRateLimiter(@Nonnull RateLimiter rateLimiter){
+                Validate.notNull(rateLimiter, "Rate limiter must not be null");
+                MojangAPI.rateLimiter = rateLimiter;
+            }
+
+            /**
+             * Base URLs must end with the path the name or UUID is appended to. Useful for proxies or mirrors of the Mojang API.
+             */
+            public static void setBaseURLs(@Nonnull String bulkProfilesURL, @Nonnull String profilesURL, @Nonnull String sessionURL){
+                Validate.notNull(bulkProfilesURL, "Bulk profiles URL must not be null");
+                Validate.notNull(profilesURL, "Profiles URL must not be null");
+                Validate.notNull(sessionURL, "Session URL must not be null");
+                MojangAPI.bulkProfilesURL = bulkProfilesURL;
+                MojangAPI.profilesURL = profilesURL.endsWith("/") ? profilesURL : profilesURL + "/";
+                MojangAPI.sessionURL = sessionURL.endsWith("/") ? sessionURL : sessionURL + "/";
+            }
+
+            public static String getBulkProfilesURL() { return bulkProfilesURL; }
+
+            public static String getProfilesURL() { return profilesURL; }
+
+            public static String getSessionURL() { return sessionURL; }
+
+            public static void setTimeout(@Nonnull Duration timeout){
+                Validate.notNull(timeout, "Timeout must not be null");
+                Validate.isTrue(!timeout.isNegative() && !timeout.isZero(), "Timeout must be positive");
+                if(timeout.equals(MojangAPI.timeout)) return;
+                MojangAPI.timeout = timeout;
+                client = createClient();
+            }
+
+            public static Duration getTimeout() { return timeout; }
+
+            private record ResolvedUUID(String uuid, String name, long resolvedMillis){}
+
+            /**
+             * Token bucket that refills capacity tokens every period.
+             */
+            protected static class RateLimiter {
+
+                private final int capacity;
+                private final long refillNanos;
+                private final LongSupplier ticker;
+                private double tokens;
+                private long lastRefill;
+
+                protected RateLimiter(int capacity, Duration period, int initialTokens){
+                    this(capacity, period, initialTokens, System::nanoTime);
+                }
+
+                /**
+                 * @param ticker source of nanoseconds the bucket is refilled with, {@link System#nanoTime()} unless testing.
+                 */
+                protected RateLimiter(int capacity, Duration period, int initialTokens, @Nonnull LongSupplier ticker){
+                    Validate.isTrue(capacity > 0, "Capacity must be positive");
+                    Validate.isTrue(initialTokens >= 0 && initialTokens <= capacity, "Initial tokens must be between 0 and the capacity");
+                    Validate.notNull(ticker, "Ticker must not be null");
+                    this.capacity = capacity;
+                    this.refillNanos = Math.max(1L, period.toNanos() / capacity);
+                    this.ticker = ticker;
+                    this.tokens = initialTokens;
+                    this.lastRefill = ticker.getAsLong();
+                }
+
+                /**
+                 * Takes a token and waits until the bucket would have been refilled, if it was empty.
+                 */
+                protected void await() throws IOException {
+                    long waitNanos = acquire();
+                    if(waitNanos > 0) sleep(waitNanos);
+                }
+
+                protected void sleep(long nanos) throws IOException {
+                    MojangAPI.sleep(TimeUnit.NANOSECONDS.toMillis(nanos));
+                }
+
+                /**
+                 * Takes a token now. If the bucket was empty, the caller must wait until it would have been refilled.
+                 *
+                 * @return the nanoseconds to wait before doing the request.
+                 */
+                protected synchronized long acquire(){
+                    refill();
+                    tokens--;
+                    return tokens >= 0 ? 0L : (long) (-tokens * refillNanos);
+                }
+
+                protected synchronized int getAvailable(){
+                    refill();
+                    return (int) Math.max(0, tokens);
+                }
+
+                private void refill(){
+                    long now = ticker.getAsLong();
+                    tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / refillNanos);
+                    lastRefill = now;
+                }
+            }
+
+            private static class RetryException extends IOException {
+
+                private final long retryAfterMillis;
+
+                private RetryException(int status, String url, long retryAfterMillis){
+                    super("Mojang API answered " + status + " to " + url);
+                    this.retryAfterMillis = retryAfterMillis;
+                }
+            }
+        }
+
+        public enum FetchPriority{
+            /** Skins of NPCs that are being seen by a player. */
+            HIGH,
+            NORMAL,
+            /** Background refreshes. */
+            LOW,
+        }
+
+        private static class FetchTask implements Runnable, Comparable<FetchTask> {
+
+            private static final AtomicLong SEQUENCE = new AtomicLong();
+
+            private final String key;
+            private final long sequence;
+            private final CompletableFuture<NPC.Skin> future;
+            private volatile Callable<NPC.Skin> fetch;
+            private volatile FetchPriority priority;
+
+            private FetchTask(String key, FetchPriority priority){
+                this.key = key;
+                this.sequence = SEQUENCE.incrementAndGet();
+                this.future = new CompletableFuture<>();
+                this.priority = priority;
+            }
+
+            /**
+             * Frees the fetch thread until the request completes. Then the task is queued again, with the same priority and order, to run the next step.
+             *
+             * @return null, which the current step must return.
+             */
+            private NPC.Skin resumeAfter(CompletableFuture<?> request, Callable<NPC.Skin> next){
+                fetch = next;
+                request.whenComplete((result, e) -> {
+                    try{ FETCH_EXECUTOR.execute(this); }
+                    catch (RejectedExecutionException exception){
+                        FETCHES_IN_FLIGHT.remove(key, this);
+                        future.completeExceptionally(exception);
+                    }
+                });
+                return null;
+            }
+
+            // The queue does not reorder its elements, so a waiting task is taken out and put back with the new priority.
+            private synchronized void promote(FetchPriority priority){
+                if(priority.ordinal() >= this.priority.ordinal()) return;
+                if(!FETCH_EXECUTOR.getQueue().remove(this)) return;
+                this.priority = priority;
+                FETCH_EXECUTOR.getQueue().add(this);
+            }
+
+            @Override
+            public void run() {
+                Callable<NPC.Skin> step = fetch;
+                NPC.Skin skin = null;
+                Exception exception = null;
+                try{ skin = step.call(); }
+                catch (Exception e){ exception = e; }
+                // The step is waiting for a request, the task will run again with the next step.
+                if(fetch != step) return;
+                FETCHES_IN_FLIGHT.remove(key, this);
+                if(exception != null) future.completeExceptionally(exception);
+                else if(skin == null) future.completeExceptionally(new IllegalStateException("Skin of " + key + " could not be fetched."));
+                else future.complete(skin);
+            }
+
+            @Override
+            public int compareTo(FetchTask o) {
+                int compare = Integer.compare(priority.ordinal(), o.priority.ordinal());
+                return compare != 0 ? compare : Long.compare(sequence, o.sequence);
+            }
+        }
+
+        /**
+         * Skins fetched by player name. The cache is bounded by the approximate memory weight of the skins,
+         * evicting the least recently used ones first. Minecraft original skins (STEVE and ALEX) are pinned and never evicted nor expired.
+         */
+        public static class Cache {
+
+            private final Map<String, NPC.Skin> pinned;
+            private final LinkedHashMap<String, NPC.Skin> skins;
+            private final AtomicLong hits;
+            private final AtomicLong misses;
+            private final AtomicLong evictions;
+            private long weight;
+            private long maxWeight;
+
+            protected Cache(long maxWeight){
+                this.pinned = new ConcurrentHashMap<>();
+                this.skins = new LinkedHashMap<>(64, 0.75F, true);
+                this.hits = new AtomicLong();
+                this.misses = new AtomicLong();
+                this.evictions = new AtomicLong();
+                this.maxWeight = maxWeight;
+            }
+
+            protected void pin(String name, NPC.Skin skin){
+                pinned.put(name, skin);
+            }
+
+            /**
+             * @return the cached skin, or null if there is none or it has expired with this frequency.
+             */
+            protected NPC.Skin get(String name, NPCLib.SkinUpdateFrequency frequency){
+                NPC.Skin skin = pinned.get(name);
+                if(skin == null){
+                    synchronized (this){
+                        skin = skins.get(name);
+                        if(skin != null && skin.isExpired(frequency)){
+                            remove(name);
+                            skin = null;
+                        }
+                    }
+                }
+                if(skin != null) hits.incrementAndGet();
+                else misses.incrementAndGet();
+                return skin;
+            }
+
+            protected synchronized void put(String name, NPC.Skin skin){
+                if(pinned.containsKey(name)) return;
+                NPC.Skin old = skins.put(name, skin);
+                if(old != null) weight -= getWeight(old);
+                weight += getWeight(skin);
+                evict();
+            }
+
+            protected synchronized void remove(String name){
+                NPC.Skin old = skins.remove(name);
+                if(old != null) weight -= getWeight(old);
+            }
+
+            private void evict(){
+                Iterator<NPC.Skin> iterator = skins.values().iterator();
+                while(weight > maxWeight && iterator.hasNext()){
+                    weight -= getWeight(iterator.next());
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+
+            public synchronized List<NPC.Skin> getSkins(){
+                List<NPC.Skin> list = new ArrayList<>(pinned.values());
+                list.addAll(skins.values());
+                return list;
+            }
+
+            public synchronized void setMaxWeight(long maxWeight) {
+                this.maxWeight = Math.max(0, maxWeight);
+                evict();
+            }
+
+            public synchronized long getMaxWeight() {
+                return maxWeight;
+            }
+
+            public synchronized long getWeight() {
+                return weight;
+            }
+
+            public synchronized int getSize() {
+                return skins.size() + pinned.size();
+            }
+
+            public long getHits() {
+                return hits.get();
+            }
+
+            public long getMisses() {
+                return misses.get();
+            }
+
+            public long getEvictions() {
+                return evictions.get();
+            }
+
+            // Texture and signature are the heavy part of a skin, about 1 KB each. Strings are counted as 2 bytes per char.
+            private static long getWeight(NPC.Skin skin){
+                long weight = 256;
+                if(skin.texture != null) weight += 2L * skin.texture.length();
+                if(skin.signature != null) weight += 2L * skin.signature.length();
+                return weight;
+            }
+        }
+
         /**
          * @since 2022.3
          */
         public enum Part{
-            CAPE,
-            JACKET,
-            LEFT_SLEEVE,
-            RIGHT_SLEEVE,
-            LEFT_PANTS,
-            RIGHT_PANTS,
-            HAT,
+            CAPE(0x01),
+            JACKET(0x02),
+            LEFT_SLEEVE(0x04),
+            RIGHT_SLEEVE(0x08),
+            LEFT_PANTS(0x10),
+            RIGHT_PANTS(0x20),
+            HAT(0x40),
+            ;
+
+            private final byte mask;
+
+            Part(int mask){
+                this.mask = (byte) mask;
+            }
+
+            /**
+             * @return the bit of this part in the skin parts metadata byte.
+             */
+            public byte getMask() {
+                return mask;
+            }
         }
 
         /**
+         * The visible parts are stored as the skin parts metadata byte (index 17) sent to the client.
+         * NPCs share immutable instances internally, but every instance handed out by the API is mutable.
+         *
          * @since 2022.2
          */
         public static class Parts implements Cloneable{
 
-            private HashMap<Part, Boolean> parts;
+            private static final Part[] PARTS = Part.values();
+            private static final byte ALL_VISIBLE = 0x7F;
+            // One immutable instance per mask, shared by the NPCs with the same visible parts.
+            private static final Parts[] IMMUTABLE = new Parts[ALL_VISIBLE + 1];
+
+            static {
+                for(int i = 0; i < IMMUTABLE.length; i++) IMMUTABLE[i] = new Parts((byte) i, true);
+            }
+
+            private byte mask;
+            private final boolean immutable;
 
             protected Parts(){
-                this.parts = new HashMap<>();
-                enableAll();
+                this(ALL_VISIBLE, false);
+            }
+
+            private Parts(byte mask, boolean immutable){
+                this.mask = (byte) (mask & ALL_VISIBLE);
+                this.immutable = immutable;
+            }
+
+            /**
+             * @return the shared immutable instance with the visible parts of the mask.
+             */
+            protected static Parts of(byte mask){
+                return IMMUTABLE[mask & ALL_VISIBLE];
+            }
+
+            protected Parts asImmutable(){
+                return immutable ? this : of(mask);
             }
 
-            public void enableAll(){ Arrays.stream(Part.values()).forEach(x-> parts.put(x, true)); }
+            protected boolean isImmutable() {
+                return immutable;
+            }
 
-            public void disableAll(){ Arrays.stream(Part.values()).forEach(x-> parts.put(x, false)); }
+            public byte getMask() {
+                return mask;
+            }
+
+            public void setMask(byte mask){
+                if(immutable) throw new UnsupportedOperationException("Cannot modify immutable NPC.Skin.Parts.");
+                this.mask = (byte) (mask & ALL_VISIBLE);
+            }
+
+            public void enableAll(){ setMask(ALL_VISIBLE); }
+
+            public void disableAll(){ setMask((byte) 0); }
 
             public List<Part> getVisibleParts(){
-                return Arrays.stream(Part.values()).filter(x-> isVisible(x)).collect(Collectors.toList());
+                List<Part> visible = new ArrayList<>(PARTS.length);
+                for(Part part : PARTS) if((mask & part.getMask()) != 0) visible.add(part);
+                return visible;
             }
 
             public List<Part> getInvisibleParts(){
-                return Arrays.stream(Part.values()).filter(x-> !isVisible(x)).collect(Collectors.toList());
+                List<Part> invisible = new ArrayList<>(PARTS.length);
+                for(Part part : PARTS) if((mask & part.getMask()) == 0) invisible.add(part);
+                return invisible;
             }
 
-            public void setVisible(Part part, boolean visible){ parts.put(part, visible); }
+            public void setVisible(Part part, boolean visible){ setVisible(visible, part); }
 
-            public boolean isVisible(Part part) { return parts.get(part); }
+            public void setVisible(boolean visible, Part... parts){
+                byte bits = 0;
+                for(Part part : parts) bits |= part.getMask();
+                setMask((byte) (visible ? mask | bits : mask & ~bits));
+            }
+
+            public boolean isVisible(Part part) { return (mask & part.getMask()) != 0; }
+
+            /**
+             * @return true if all the parts are visible.
+             */
+            public boolean isVisible(Part... parts){
+                byte bits = 0;
+                for(Part part : parts) bits |= part.getMask();
+                return (mask & bits) == bits;
+            }
 
             public boolean isCape() {
                 return isVisible(Part.CAPE);
@@ -2858,7 +3864,7 @@ public abstract class NPC {
             }
 
             public boolean isLeftSleeve() {
-                return parts.get(Part.LEFT_SLEEVE);
+                return isVisible(Part.LEFT_SLEEVE);
             }
 
             public void setLeftSleeve(boolean leftSleeve) {
@@ -2897,11 +3903,24 @@ public abstract class NPC {
                 setVisible(Part.HAT, hat);
             }
 
+            @Override
+            public boolean equals(Object o) {
+                if(this == o) return true;
+                if(!(o instanceof NPC.Skin.Parts)) return false;
+                return mask == ((NPC.Skin.Parts) o).mask;
+            }
+
+            @Override
+            public int hashCode() {
+                return mask;
+            }
+
+            /**
+             * @return a mutable copy of these parts.
+             */
             @Override
             public NPC.Skin.Parts clone(){
-                NPC.Skin.Parts parts = new NPC.Skin.Parts();
-                Arrays.stream(Part.values()).forEach(x-> parts.setVisible(x, isVisible(x)));
-                return parts;
+                return new NPC.Skin.Parts(mask, false);
             }
 
         }
@@ -3968,7 +4987,10 @@ public abstract class NPC {
         private final Player player;
         private Location location;
         private HashMap<Integer, List<EntityArmorStand>> lines;
+        private HashMap<Integer, String> renderedLines;
+        private Set<Integer> changedLines;
         private boolean canSee;
+        private boolean mounted;
 
         protected Hologram(NPC npc, Player player) {
             this.npc = npc;
@@ -3977,8 +4999,14 @@ public abstract class NPC {
             create();
         }
 
+        private void sendPacket(Packet<?> packet){
+            npc.getNPCLib().getNPCPlayerManager(player).sendPacket(packet);
+        }
+
         private void create(){
             this.lines = new HashMap<>();
+            this.renderedLines = new HashMap<>();
+            this.changedLines = new HashSet<>();
             this.location = new Location(npc.getWorld(), npc.getX(), npc.getY(), npc.getZ()).add(npc.getTextAlignment());
             for (int i = 1; i <= getText().size(); i++) {
                 createLine();
@@ -3993,13 +5021,12 @@ public abstract class NPC {
                 line = i;
                 break;
             }
-            NPC.Hologram.Opacity textOpacity = getLinesOpacity().getOrDefault(line, npc.getTextOpacity());
-            WorldServer world = null;
-            try{ world = (WorldServer) NMSCraftWorld.getCraftWorldGetHandle().invoke(NMSCraftWorld.getCraftWorldClass().cast(location.getWorld()), new Object[0]);}catch (Exception e){}
+            NPC.Hologram.Opacity textOpacity = npc.getAttributes().getLineOpacity(line, npc.getTextOpacity());
+            WorldServer world = NMSAccessors.getWorldServer(location.getWorld());
             Validate.notNull(world, "Error at NMSCraftWorld");
             List<EntityArmorStand> armorStands = new ArrayList<>();
             for(int i = 1; i <= textOpacity.getTimes(); i++){
-                EntityArmorStand armor = new EntityArmorStand(world, location.getX(), location.getY() + (npc.getLineSpacing() * ((getText().size() - line))), location.getZ());
+                EntityArmorStand armor = new EntityArmorStand(world, location.getX(), location.getY() + (npc.getAttributes().lineSpacing * ((getText().size() - line))), location.getZ());
                 armor.n(true); //setCustomNameVisible
                 armor.e(true); //setNoGravity
                 NMSEntity.setCustomName(armor, "§f");
@@ -4014,6 +5041,10 @@ public abstract class NPC {
         protected void setLine(int line, String text) {
             if(!lines.containsKey(line)) return;
             String replacedText = NPC.Placeholders.replace(npc, player, text);
+            // The custom name component is only built again when the rendered text has changed.
+            if(replacedText.equals(renderedLines.get(line))) return;
+            renderedLines.put(line, replacedText);
+            changedLines.add(line);
             for(EntityArmorStand as : lines.get(line)){
                 as.e(true); //setNoGravity
                 as.j(true); //setInvisible
@@ -4024,7 +5055,7 @@ public abstract class NPC {
 
         protected String getLine(int line) {
             if(!lines.containsKey(line)) return "";
-            return lines.get(line).get(0).Z().getString(); //Z getCustomName
+            return renderedLines.getOrDefault(line, "");
         }
 
         protected boolean hasLine(int line){
@@ -4041,41 +5072,106 @@ public abstract class NPC {
             }
             for(Integer line : lines.keySet()){
                 for(EntityArmorStand armor : lines.get(line)){
-                    NMSPacketPlayOutSpawnEntity.sendPacket(getPlayer(), armor);
-                    NMSCraftPlayer.sendPacket(getPlayer(), new PacketPlayOutEntityMetadata(armor.ae(), armor.ai(), true)); //ae getID //ai getDataWatcher
+                    // Through the batched path, so the stands never reach the client before the NPC they belong to.
+                    sendPacket(new PacketPlayOutSpawnEntity(armor));
+                    sendPacket(new PacketPlayOutEntityMetadata(armor.ae(), armor.ai(), true)); //ae getID //ai getDataWatcher
                 }
             }
+            changedLines.clear();
             canSee = true;
+            mounted = false;
+            mount();
+        }
+
+        /**
+         * In {@link Mode#PASSENGER} the stands ride the NPC entity, so the client moves them with the NPC.
+         */
+        protected void mount(){
+            if(!canSee || !isPassengerMode()) return;
+            EntityPlayer entityPlayer = ((NPC.Personal) npc).entityPlayer;
+            if(entityPlayer == null) return;
+            List<EntityArmorStand> passengers = lines.values().stream().flatMap(Collection::stream).toList();
+            // The packet copies the passenger ids of the entity, so they are only set while it is built.
+            if(!NMSAccessors.setPassengers(entityPlayer, passengers)) return;
+            PacketPlayOutMount packet = new PacketPlayOutMount(entityPlayer);
+            NMSAccessors.setPassengers(entityPlayer, Collections.emptyList());
+            sendPacket(packet);
+            mounted = true;
+        }
+
+        /**
+         * The client places passengers itself, so only holograms it would place where they are configured can ride the NPC.
+         * Those are single line holograms without a horizontal text alignment, the rest use {@link Mode#TELEPORT}.
+         * So do all of them if the passengers of the NPC entity cannot be set on this server version.
+         */
+        protected boolean isPassengerMode(){
+            if(npc.getHologramMode() != Mode.PASSENGER || !(npc instanceof NPC.Personal) || !NMSAccessors.canSetPassengers()) return false;
+            // Marker stands have no height, so stands riding each other would all show at the same height.
+            if(lines.size() != 1) return false;
+            Vector textAlignment = npc.getAttributes().textAlignment;
+            return textAlignment.getX() == 0.0 && textAlignment.getZ() == 0.0;
         }
 
         protected void hide(){
             if(!canSee) return;
             for (Integer in : lines.keySet()) {
                 for(EntityArmorStand armor : lines.get(in)){
-                    NMSCraftPlayer.sendPacket(getPlayer(), NMSPacketPlayOutEntityDestroy.createPacket(armor.ae())); //ae getID
+                    sendPacket(NMSPacketPlayOutEntityDestroy.createPacket(armor.ae())); //ae getID
                 }
             }
             canSee = false;
+            mounted = false;
         }
 
         protected void move(Vector vector){
+            double x = location.getX();
+            double y = location.getY();
+            double z = location.getZ();
             this.location.add(vector);
-            PlayerConnection playerConnection = NMSCraftPlayer.getPlayerConnection(getPlayer());
+            short deltaX = getMoveDelta(x, vector.getX());
+            short deltaZ = getMoveDelta(z, vector.getZ());
+            // Mounted stands are moved by the client, only their position on the server is kept up to date.
+            boolean sendPackets = canSee && !mounted;
             for (Integer in : lines.keySet()) {
+                // Stands are placed from the hologram location, so their position is known without asking the entity.
+                double lineY = y + (npc.getAttributes().lineSpacing * (lines.size() - in));
+                short deltaY = getMoveDelta(lineY, vector.getY());
                 for(EntityArmorStand armor : lines.get(in)){
-                    Location location = armor.getBukkitEntity().getLocation();
-                    double fx = location.getX() + vector.getX();
-                    double fy = location.getY() + vector.getY();
-                    double fz = location.getZ() + vector.getZ();
-                    armor.g(fx, fy, fz);
-                    playerConnection.a(new PacketPlayOutEntityTeleport(armor));
+                    armor.g(x + vector.getX(), lineY + vector.getY(), z + vector.getZ());
+                    if(sendPackets) sendPacket(new PacketPlayOutEntity.PacketPlayOutRelEntityMove(armor.ae(), deltaX, deltaY, deltaZ, false)); //ae getID
                 }
             }
         }
 
+        /**
+         * Sends only the metadata of the lines whose text has changed. Armor stands are spawned again only when
+         * lines have been added or removed, or the opacity of a line has changed.
+         */
         protected void update(){
-            hide();
-            show();
+            if(isStructureChanged()){
+                forceUpdate();
+                return;
+            }
+            if(!canSee){
+                show();
+                return;
+            }
+            for(Integer line : changedLines){
+                for(EntityArmorStand armor : lines.get(line)){
+                    sendPacket(new PacketPlayOutEntityMetadata(armor.ae(), armor.ai(), false)); //ae getID //ai getDataWatcher //false only the changed values
+                }
+            }
+            changedLines.clear();
+        }
+
+        private boolean isStructureChanged(){
+            if(lines.size() != getText().size()) return true;
+            if(canSee && mounted != isPassengerMode()) return true;
+            for(Integer line : lines.keySet()){
+                NPC.Hologram.Opacity textOpacity = npc.getAttributes().getLineOpacity(line, npc.getTextOpacity());
+                if(lines.get(line).size() != textOpacity.getTimes()) return true;
+            }
+            return false;
         }
 
         protected void forceUpdate(){
@@ -4132,6 +5228,21 @@ public abstract class NPC {
 
             public static Opacity getOpacity(String name){ return Arrays.stream(Opacity.values()).filter(x-> x.name().equalsIgnoreCase(name)).findAny().orElse(null); }
         }
+
+        public enum Mode {
+            /** Stands are moved with their own packets when the NPC moves. Suits NPCs that do not move. */
+            TELEPORT,
+            /**
+             * Stands ride the NPC, so the client moves them and moving the NPC sends no hologram packets.
+             * <p>The client places the line just above the head of the NPC, so the Y of the text alignment and the line spacing are not applied.
+             * It places every passenger at the same height and cannot offset them, so holograms with more than one line
+             * or with a horizontal text alignment fall back to {@link #TELEPORT}.</p>
+             */
+            PASSENGER,
+            ;
+
+            public static Mode getMode(String name){ return Arrays.stream(Mode.values()).filter(x-> x.name().equalsIgnoreCase(name)).findAny().orElse(null); }
+        }
     }
 
     /**
@@ -4143,7 +5254,7 @@ public abstract class NPC {
                 NPC.Skin.getSteveSkin(),
                 new Skin.Parts(),
                 new ArrayList<>(),
-                new HashMap<>(),
+                new EnumMap<>(NPC.Slot.class),
                 false,
                 50.0,
                 false,
@@ -4158,7 +5269,8 @@ public abstract class NPC {
                 NPC.Hologram.Opacity.LOWEST,
                 false,
                 Move.Speed.NORMAL.doubleValue(),
-                new HashMap<>()
+                null,
+                NPC.Hologram.Mode.TELEPORT
         );
 
         protected static final Double VARIABLE_MIN_LINE_SPACING = 0.27;
@@ -4166,111 +5278,139 @@ public abstract class NPC {
         protected static final Double VARIABLE_MAX_TEXT_ALIGNMENT_XZ = 2.00;
         protected static final Double VARIABLE_MAX_TEXT_ALIGNMENT_Y = 5.00;
 
+        // Components of NPC.Personal#update() that must be sent again.
+        protected static final int DIRTY_POSE = 1;
+        protected static final int DIRTY_SKIN = 1 << 1;
+        protected static final int DIRTY_ROTATION = 1 << 2;
+        protected static final int DIRTY_EQUIPMENT = 1 << 3;
+        protected static final int DIRTY_METADATA = 1 << 4;
+        protected static final int DIRTY_ALL = DIRTY_POSE | DIRTY_SKIN | DIRTY_ROTATION | DIRTY_EQUIPMENT | DIRTY_METADATA;
+
+        // Mutable values taken from other attributes (the ones of a Global NPC), copied before being modified.
+        // The skin parts are shared as the immutable instance of their mask instead.
+        private static final int SHARED_SLOTS = 1;
+        private static final int SHARED_TEXT_ALIGNMENT = 1 << 1;
+        private static final int SHARED_LINES_OPACITY = 1 << 2;
+
+        // Boolean attributes, packed in flags. The custom attributes of a Global NPC only use the ones marked in flagsSet.
+        protected static final byte FLAG_COLLIDABLE = 1;
+        protected static final byte FLAG_GLOWING = 1 << 1;
+        protected static final byte FLAG_SHOW_ON_TAB_LIST = 1 << 2;
+        protected static final byte FLAG_ON_FIRE = 1 << 3;
+
+        // Unset values of the primitive attributes, the doubles are unset with NaN.
+        protected static final long UNSET_INTERACT_COOLDOWN = -1L;
+
         protected NPC.Skin skin;
         protected NPC.Skin.Parts skinParts;
         protected List<String> text;
-        protected HashMap<NPC.Slot, ItemStack> slots;
-        protected Boolean collidable;
-        protected Double hideDistance;
-        protected Boolean glowing;
+        protected EnumMap<NPC.Slot, ItemStack> slots;
+        protected double hideDistance = Double.NaN;
         protected NPC.Color glowingColor;
         protected NPC.GazeTrackingType gazeTrackingType;
         protected String customTabListName;
-        protected Boolean showOnTabList;
-        protected Long interactCooldown;
-        protected Double lineSpacing;
+        protected long interactCooldown = UNSET_INTERACT_COOLDOWN;
+        protected double lineSpacing = Double.NaN;
         protected Vector textAlignment;
         protected NPC.Pose pose;
         protected NPC.Hologram.Opacity textOpacity;
-        protected Boolean onFire;
-        protected Double moveSpeed;
-        protected HashMap<Integer, NPC.Hologram.Opacity> linesOpacity;
+        protected double moveSpeed = Double.NaN;
+        // Indexed by line, null until an opacity is set for a line.
+        protected NPC.Hologram.Opacity[] linesOpacity;
+        protected NPC.Hologram.Mode hologramMode;
+        private byte flags;
+        private byte flagsSet;
+        private int dirty = DIRTY_ALL;
+        private int shared;
+        private EnumMap<NPC.Slot, net.minecraft.world.item.ItemStack> nmsSlots = new EnumMap<>(NPC.Slot.class);
+        private List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> nmsEquipment;
+        private PacketTemplate equipmentTemplate;
 
         private Attributes(NPC.Skin skin,
                            NPC.Skin.Parts parts,
                            List<String> text,
-                           HashMap<NPC.Slot, ItemStack> slots,
+                           EnumMap<NPC.Slot, ItemStack> slots,
                            boolean collidable,
-                           Double hideDistance,
+                           double hideDistance,
                            boolean glowing,
                            NPC.Color glowingColor,
                            NPC.GazeTrackingType gazeTrackingType,
                            String customTabListName,
                            boolean showOnTabList,
-                           Long interactCooldown,
-                           Double lineSpacing,
+                           long interactCooldown,
+                           double lineSpacing,
                            Vector textAlignment,
                            NPC.Pose npcPose,
                            NPC.Hologram.Opacity textOpacity,
                            boolean onFire,
-                           Double moveSpeed,
-                           HashMap<Integer, NPC.Hologram.Opacity> linesOpacity
+                           double moveSpeed,
+                           NPC.Hologram.Opacity[] linesOpacity,
+                           NPC.Hologram.Mode hologramMode
         ) {
             this.skin = skin;
             this.skinParts = parts;
             this.text = text;
             this.slots = slots;
-            this.collidable = collidable;
+            setFlag(FLAG_COLLIDABLE, collidable);
             this.hideDistance = hideDistance;
-            this.glowing = glowing;
+            setFlag(FLAG_GLOWING, glowing);
             this.glowingColor = glowingColor;
             this.gazeTrackingType = gazeTrackingType;
             this.customTabListName = customTabListName;
-            this.showOnTabList = showOnTabList;
+            setFlag(FLAG_SHOW_ON_TAB_LIST, showOnTabList);
             this.interactCooldown = interactCooldown;
             this.lineSpacing = lineSpacing;
             this.textAlignment = textAlignment;
             this.pose = npcPose;
             this.textOpacity = textOpacity;
-            this.onFire = onFire;
+            setFlag(FLAG_ON_FIRE, onFire);
             this.moveSpeed = moveSpeed;
             this.linesOpacity = linesOpacity;
+            this.hologramMode = hologramMode;
             Arrays.stream(NPC.Slot.values()).filter(x-> !slots.containsKey(x)).forEach(x-> slots.put(x, new ItemStack(Material.AIR)));
         }
 
         protected Attributes(){
-            this.collidable = DEFAULT.isCollidable();
+            this.flags = DEFAULT.flags;
+            this.flagsSet = DEFAULT.flagsSet;
             this.text = DEFAULT.getText();
-            this.hideDistance = DEFAULT.getHideDistance();
-            this.glowing = DEFAULT.isGlowing();
+            this.hideDistance = DEFAULT.hideDistance;
             this.skin = DEFAULT.getSkin();
-            this.skinParts = DEFAULT.getSkinParts().clone();
+            this.skinParts = DEFAULT.skinParts.clone();
             this.glowingColor = DEFAULT.getGlowingColor();
             this.gazeTrackingType = DEFAULT.getGazeTrackingType();
-            this.slots = (HashMap<NPC.Slot, ItemStack>) DEFAULT.getSlots().clone();
+            this.slots = DEFAULT.slots.clone();
             this.customTabListName = DEFAULT.getCustomTabListName();
-            this.showOnTabList = DEFAULT.isShowOnTabList();
             this.pose = DEFAULT.getPose();
-            this.lineSpacing = DEFAULT.getLineSpacing();
-            this.textAlignment = DEFAULT.getTextAlignment().clone();
-            this.interactCooldown = DEFAULT.getInteractCooldown();
+            this.lineSpacing = DEFAULT.lineSpacing;
+            this.textAlignment = DEFAULT.textAlignment.clone();
+            this.interactCooldown = DEFAULT.interactCooldown;
             this.textOpacity = DEFAULT.getTextOpacity();
-            this.onFire = DEFAULT.isOnFire();
-            this.moveSpeed = DEFAULT.getMoveSpeed();
-            this.linesOpacity = (HashMap<Integer, Hologram.Opacity>) DEFAULT.getLinesOpacity().clone();
+            this.moveSpeed = DEFAULT.moveSpeed;
+            this.linesOpacity = DEFAULT.linesOpacity != null ? DEFAULT.linesOpacity.clone() : null;
+            this.hologramMode = DEFAULT.getHologramMode();
         }
 
         protected Attributes(NPC npc){
             if(npc == null) return;
-            this.collidable = npc.getAttributes().isCollidable();
+            this.flags = npc.getAttributes().flags;
+            this.flagsSet = npc.getAttributes().flagsSet;
             this.text = npc.getAttributes().getText();
-            this.hideDistance = npc.getAttributes().getHideDistance();
-            this.glowing = npc.getAttributes().isGlowing();
+            this.hideDistance = npc.getAttributes().hideDistance;
             this.skin = npc.getAttributes().getSkin();
-            this.skinParts = npc.getAttributes().getSkinParts();
+            this.skinParts = npc.getAttributes().skinParts.clone();
             this.glowingColor = npc.getAttributes().getGlowingColor();
             this.gazeTrackingType = npc.getAttributes().getGazeTrackingType();
-            this.slots = (HashMap<NPC.Slot, ItemStack>) npc.getAttributes().getSlots().clone();
+            this.slots = npc.getAttributes().slots.clone();
             this.customTabListName = npc.getAttributes().getCustomTabListName();
-            this.showOnTabList = npc.getAttributes().isShowOnTabList();
             this.pose = npc.getAttributes().getPose();
-            this.lineSpacing = npc.getAttributes().getLineSpacing();
-            this.textAlignment = npc.getAttributes().getTextAlignment().clone();
-            this.interactCooldown = npc.getAttributes().getInteractCooldown();
+            this.lineSpacing = npc.getAttributes().lineSpacing;
+            this.textAlignment = npc.getAttributes().getTextAlignment();
+            this.interactCooldown = npc.getAttributes().interactCooldown;
             this.textOpacity = npc.getAttributes().getTextOpacity();
-            this.onFire = npc.getAttributes().isOnFire();
-            this.moveSpeed = npc.getAttributes().getMoveSpeed();
-            this.linesOpacity = (HashMap<Integer, Hologram.Opacity>) npc.getAttributes().getLinesOpacity().clone();
+            this.moveSpeed = npc.getAttributes().moveSpeed;
+            this.linesOpacity = npc.getAttributes().linesOpacity != null ? npc.getAttributes().linesOpacity.clone() : null;
+            this.hologramMode = npc.getAttributes().getHologramMode();
         }
 
         public void applyNPC(@Nonnull NPC.Personal npc, boolean forceUpdate){
@@ -4282,23 +5422,24 @@ public abstract class NPC {
             Validate.notNull(npc, "Cannot apply NPC.Attributes to a null NPC.");
             npc.setSkin(this.skin);
             npc.setSkinParts(this.skinParts);
-            npc.setCollidable(this.collidable);
+            npc.setCollidable(isCollidable());
             npc.setText(this.text);
             npc.setHideDistance(this.hideDistance);
-            npc.setGlowing(this.glowing);
+            npc.setGlowing(isGlowing());
             npc.setGlowingColor(this.glowingColor);
             npc.setGazeTrackingType(this.gazeTrackingType);
-            npc.setSlots((HashMap<NPC.Slot, ItemStack>) this.slots.clone());
+            npc.getAttributes().setSlots(this.slots.clone());
             npc.setCustomTabListName(this.customTabListName);
-            npc.setShowOnTabList(this.showOnTabList);
+            npc.setShowOnTabList(isShowOnTabList());
             npc.setPose(this.pose);
             npc.setLineSpacing(this.lineSpacing);
             npc.setTextAlignment(this.textAlignment.clone());
             npc.setInteractCooldown(this.interactCooldown);
             npc.setTextOpacity(this.textOpacity);
             npc.setMoveSpeed(this.moveSpeed);
-            npc.setOnFire(this.onFire);
-            npc.setLinesOpacity((HashMap<Integer, Hologram.Opacity>) this.linesOpacity.clone());
+            npc.setOnFire(isOnFire());
+            npc.getAttributes().setLinesOpacity(this.linesOpacity != null ? this.linesOpacity.clone() : null);
+            npc.setHologramMode(this.hologramMode);
         }
 
         public void applyNPC(@Nonnull Collection<NPC.Personal> npc){
@@ -4312,6 +5453,34 @@ public abstract class NPC {
 
         public static Attributes getDefault(){ return DEFAULT; }
 
+        protected void markDirty(int components){
+            this.dirty |= components;
+        }
+
+        protected int pollDirty(){
+            int dirty = this.dirty;
+            this.dirty = 0;
+            return dirty;
+        }
+
+        private boolean getFlag(byte flag){
+            return (flags & flag) != 0;
+        }
+
+        private void setFlag(byte flag, boolean value){
+            flags = (byte) (value ? flags | flag : flags & ~flag);
+            flagsSet |= flag;
+        }
+
+        protected boolean isFlagSet(byte flag){
+            return (flagsSet & flag) != 0;
+        }
+
+        protected void unsetFlag(byte flag){
+            flags &= ~flag;
+            flagsSet &= ~flag;
+        }
+
         public static Attributes getNPCAttributes(@Nonnull NPC npc){
             Validate.notNull(npc, "Cannot get NPC.Attributes from a null NPC");
             return npc.getAttributes();
@@ -4321,8 +5490,12 @@ public abstract class NPC {
             return skin;
         }
 
+        /**
+         * The parts taken from a Global NPC are shared and immutable, so they are copied on the first access and the
+         * returned instance can always be modified. Call {@link NPC#update()} to show the changes.
+         */
         public Skin.Parts getSkinParts() {
-            return skinParts;
+            return getOwnSkinParts();
         }
 
         public static NPC.Skin getDefaultSkin(){
@@ -4331,14 +5504,25 @@ public abstract class NPC {
 
         protected void setSkin(@Nullable NPC.Skin skin) {
             if(skin == null) skin = NPC.Skin.getSteveSkin();
+            if(skin != this.skin) markDirty(DIRTY_SKIN);
             this.skin = skin;
         }
 
         protected void setSkinParts(@Nullable NPC.Skin.Parts skinParts) {
             if(skinParts == null) skinParts = new Skin.Parts();
+            if(!skinParts.equals(this.skinParts)) markDirty(DIRTY_METADATA);
             this.skinParts = skinParts;
         }
 
+        protected void shareSkinParts(@Nonnull NPC.Skin.Parts skinParts) {
+            setSkinParts(skinParts.asImmutable());
+        }
+
+        protected NPC.Skin.Parts getOwnSkinParts() {
+            if(skinParts.isImmutable()) skinParts = skinParts.clone();
+            return skinParts;
+        }
+
         public static void setDefaultSkinParts(@Nullable NPC.Skin.Parts skinParts){
             DEFAULT.setSkinParts(skinParts);
         }
@@ -4364,8 +5548,9 @@ public abstract class NPC {
             DEFAULT.setText(text);
         }
 
+        // The slots are stored in an EnumMap that may be shared with other attributes, so only a copy is handed out.
         protected HashMap<NPC.Slot, ItemStack> getSlots() {
-            return slots;
+            return new HashMap<>(slots);
         }
 
         public ItemStack getHelmet(){
@@ -4435,6 +5620,19 @@ public abstract class NPC {
         protected void setItem(@Nonnull NPC.Slot slot, @Nullable ItemStack itemStack){
             Validate.notNull(slot, "Failed to set item, NPCSlot cannot be null");
             if(itemStack == null) itemStack = new ItemStack(Material.AIR);
+            if((shared & SHARED_SLOTS) != 0){
+                slots = slots.clone();
+                nmsSlots = nmsSlots.clone();
+                shared &= ~SHARED_SLOTS;
+            }
+            ItemStack previous = slots.get(slot);
+            // The same instance may have been modified since it was converted, so it is converted again.
+            if(itemStack == previous || !itemStack.equals(previous)){
+                markDirty(DIRTY_EQUIPMENT);
+                nmsSlots.remove(slot);
+                nmsEquipment = null;
+                equipmentTemplate = null;
+            }
             slots.put(slot, itemStack);
         }
 
@@ -4454,7 +5652,62 @@ public abstract class NPC {
         }
 
         protected void setSlots(@Nonnull HashMap<NPC.Slot, ItemStack> slots) {
+            EnumMap<NPC.Slot, ItemStack> enumSlots = new EnumMap<>(NPC.Slot.class);
+            enumSlots.putAll(slots);
+            setSlots(enumSlots);
+        }
+
+        private void setSlots(@Nonnull EnumMap<NPC.Slot, ItemStack> slots) {
+            if(slots == this.slots || !slots.equals(this.slots)){
+                markDirty(DIRTY_EQUIPMENT);
+                nmsSlots = new EnumMap<>(NPC.Slot.class);
+                nmsEquipment = null;
+                equipmentTemplate = null;
+            }
             this.slots = slots;
+            shared &= ~SHARED_SLOTS;
+        }
+
+        /**
+         * Takes the slots of other attributes (the ones of a Global NPC) together with their converted and encoded equipment,
+         * so the same equipment is not converted nor encoded again for every player.
+         */
+        protected void setSlots(@Nonnull NPC.Attributes attributes){
+            List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> nmsEquipment = attributes.getNMSEquipment();
+            if(nmsEquipment == this.nmsEquipment) return;
+            this.slots = attributes.slots;
+            this.nmsSlots = attributes.nmsSlots;
+            this.nmsEquipment = nmsEquipment;
+            this.equipmentTemplate = attributes.getEquipmentTemplate();
+            shared |= SHARED_SLOTS;
+            markDirty(DIRTY_EQUIPMENT);
+        }
+
+        protected List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> getNMSEquipment(){
+            if(nmsEquipment != null) return nmsEquipment;
+            List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> equipment = new ArrayList<>(NPC.Slot.values().length);
+            for(NPC.Slot slot : NPC.Slot.values()){
+                net.minecraft.world.item.ItemStack craftItem = nmsSlots.get(slot);
+                if(craftItem == null){
+                    if(!slots.containsKey(slot)) slots.put(slot, new ItemStack(Material.AIR));
+                    craftItem = NMSAccessors.asNMSCopy(slots.get(slot));
+                    Validate.notNull(craftItem, "Error at NMSCraftItemStack");
+                    nmsSlots.put(slot, craftItem);
+                }
+                equipment.add(new Pair<>(slot.getNmsEnum(EnumItemSlot.class), craftItem));
+            }
+            nmsEquipment = Collections.unmodifiableList(equipment);
+            return nmsEquipment;
+        }
+
+        /**
+         * The equipment packet is encoded once for the current equipment, and only its entity id is written for each player.
+         */
+        protected PacketTemplate getEquipmentTemplate(){
+            if(equipmentTemplate != null) return equipmentTemplate;
+            List<Pair<EnumItemSlot, net.minecraft.world.item.ItemStack>> equipment = getNMSEquipment();
+            equipmentTemplate = new PacketTemplate(entityID -> new PacketPlayOutEntityEquipment(entityID, equipment));
+            return equipmentTemplate;
         }
 
         protected static void setDefaultSlots(HashMap<NPC.Slot, ItemStack> slots){
@@ -4462,7 +5715,7 @@ public abstract class NPC {
         }
 
         public boolean isCollidable() {
-            return collidable;
+            return getFlag(FLAG_COLLIDABLE);
         }
 
         public static boolean isDefaultCollidable(){
@@ -4470,15 +5723,18 @@ public abstract class NPC {
         }
 
         protected void setCollidable(boolean collidable) {
-            this.collidable = collidable;
+            setFlag(FLAG_COLLIDABLE, collidable);
         }
 
         public static void setDefaultCollidable(boolean collidable){
             DEFAULT.setCollidable(collidable);
         }
 
+        /**
+         * @return the hide distance, or null if it is not set in these custom attributes
+         */
         public Double getHideDistance() {
-            return hideDistance;
+            return !Double.isNaN(hideDistance) ? hideDistance : null;
         }
 
         public static Double getDefaultHideDistance(){
@@ -4513,7 +5769,7 @@ public abstract class NPC {
         }
 
         public boolean isGlowing() {
-            return glowing;
+            return getFlag(FLAG_GLOWING);
         }
 
         public static boolean isDefaultGlowing(){
@@ -4521,7 +5777,8 @@ public abstract class NPC {
         }
 
         protected void setGlowing(boolean glowing) {
-            this.glowing = glowing;
+            if(!isFlagSet(FLAG_GLOWING) || isGlowing() != glowing) markDirty(DIRTY_METADATA);
+            setFlag(FLAG_GLOWING, glowing);
         }
 
         public static void setDefaultGlowing(boolean glowing){
@@ -4561,6 +5818,7 @@ public abstract class NPC {
 
         protected void setGazeTrackingType(@Nullable NPC.GazeTrackingType gazeTrackingType) {
             if(gazeTrackingType == null) gazeTrackingType = NPC.GazeTrackingType.NONE;
+            if(gazeTrackingType != this.gazeTrackingType) markDirty(DIRTY_ROTATION);
             this.gazeTrackingType = gazeTrackingType;
         }
 
@@ -4588,7 +5846,7 @@ public abstract class NPC {
         }
 
         public boolean isShowOnTabList() {
-            return showOnTabList;
+            return getFlag(FLAG_SHOW_ON_TAB_LIST);
         }
 
         public boolean isDefaultShowOnTabList(){
@@ -4596,15 +5854,18 @@ public abstract class NPC {
         }
 
         protected void setShowOnTabList(boolean showOnTabList) {
-            this.showOnTabList = showOnTabList;
+            setFlag(FLAG_SHOW_ON_TAB_LIST, showOnTabList);
         }
 
         public static void setDefaultShowOnTabList(boolean showOnTabList){
             DEFAULT.setShowOnTabList(showOnTabList);
         }
 
+        /**
+         * @return the interact cooldown in milliseconds, or null if it is not set in these custom attributes
+         */
         public Long getInteractCooldown() {
-            return interactCooldown;
+            return interactCooldown != UNSET_INTERACT_COOLDOWN ? interactCooldown : null;
         }
 
         public static Long getDefaultInteractCooldown(){
@@ -4620,8 +5881,11 @@ public abstract class NPC {
             DEFAULT.setInteractCooldown(interactCooldown);
         }
 
+        /**
+         * @return the line spacing, or null if it is not set in these custom attributes
+         */
         public Double getLineSpacing() {
-            return lineSpacing;
+            return !Double.isNaN(lineSpacing) ? lineSpacing : null;
         }
 
         public static Double getDefaultLineSpacing(){
@@ -4639,7 +5903,7 @@ public abstract class NPC {
         }
 
         public Vector getTextAlignment() {
-            return textAlignment;
+            return textAlignment != null ? textAlignment.clone() : null;
         }
 
         public static Vector getDefaultTextAlignment(){
@@ -4655,6 +5919,14 @@ public abstract class NPC {
             if(vector.getZ() > NPC.Attributes.VARIABLE_MAX_TEXT_ALIGNMENT_XZ) vector.setZ(dev.sergiferry.playernpc.api.NPC.Attributes.VARIABLE_MAX_TEXT_ALIGNMENT_XZ);
             else if(vector.getZ() < -NPC.Attributes.VARIABLE_MAX_TEXT_ALIGNMENT_XZ) vector.setZ(-dev.sergiferry.playernpc.api.NPC.Attributes.VARIABLE_MAX_TEXT_ALIGNMENT_XZ);
             this.textAlignment = vector;
+            shared &= ~SHARED_TEXT_ALIGNMENT;
+        }
+
+        // The vector of the other attributes is already within the limits.
+        protected void shareTextAlignment(@Nonnull Vector vector) {
+            if(vector == this.textAlignment) return;
+            this.textAlignment = vector;
+            shared |= SHARED_TEXT_ALIGNMENT;
         }
 
         public static void setDefaultTextAlignment(Vector textAlignment){
@@ -4671,6 +5943,7 @@ public abstract class NPC {
 
         protected void setPose(@Nullable NPC.Pose pose) {
             if(pose == null) pose = NPC.Pose.STANDING;
+            if(pose != this.pose) markDirty(DIRTY_POSE | DIRTY_METADATA);
             this.pose = pose;
         }
 
@@ -4695,8 +5968,25 @@ public abstract class NPC {
             this.textOpacity = textOpacity;
         }
 
+        public static NPC.Hologram.Mode getDefaultHologramMode(){
+            return DEFAULT.getHologramMode();
+        }
+
+        public NPC.Hologram.Mode getHologramMode() {
+            return hologramMode;
+        }
+
+        public static void setDefaultHologramMode(@Nullable NPC.Hologram.Mode hologramMode){
+            DEFAULT.setHologramMode(hologramMode);
+        }
+
+        protected void setHologramMode(@Nullable NPC.Hologram.Mode hologramMode) {
+            if(hologramMode == null) hologramMode = NPC.Hologram.Mode.TELEPORT;
+            this.hologramMode = hologramMode;
+        }
+
         public boolean isOnFire() {
-            return onFire;
+            return getFlag(FLAG_ON_FIRE);
         }
 
         public static boolean isDefaultOnFire(){
@@ -4704,15 +5994,20 @@ public abstract class NPC {
         }
 
         protected void setOnFire(boolean onFire) {
-            this.onFire = onFire;
+            if(!isFlagSet(FLAG_ON_FIRE) || isOnFire() != onFire) markDirty(DIRTY_METADATA);
+            setFlag(FLAG_ON_FIRE, onFire);
         }
 
         public static void setDefaultOnFire(boolean onFire){
             DEFAULT.setOnFire(onFire);
         }
 
+        /**
+         * @return the move speed, or the default one if it is not set in these custom attributes
+         */
         public double getMoveSpeed() {
-            return moveSpeed;
+            if(!Double.isNaN(moveSpeed)) return moveSpeed;
+            return DEFAULT != null && !Double.isNaN(DEFAULT.moveSpeed) ? DEFAULT.moveSpeed : Move.Speed.NORMAL.doubleValue();
         }
 
         public static Double getDefaultMoveSpeed(){
@@ -4730,27 +6025,62 @@ public abstract class NPC {
         }
 
         public void setLineOpacity(int line, Hologram.Opacity opacity){
+            Validate.isTrue(line >= 0, "Error setting line opacity, line cannot be negative.");
             if(textOpacity == null) textOpacity = NPC.Hologram.Opacity.LOWEST;
-            this.linesOpacity.put(line, opacity);
+            // A null opacity leaves the line unset, so it uses the text opacity.
+            if(opacity == null) resetLineOpacity(line);
+            else getOwnLinesOpacity(line + 1)[line] = opacity;
         }
 
         public Hologram.Opacity getLineOpacity(int line){
-            return linesOpacity.getOrDefault(line, Hologram.Opacity.LOWEST);
+            return getLineOpacity(line, Hologram.Opacity.LOWEST);
+        }
+
+        protected Hologram.Opacity getLineOpacity(int line, Hologram.Opacity defaultOpacity){
+            if(linesOpacity == null || line < 0 || line >= linesOpacity.length || linesOpacity[line] == null) return defaultOpacity;
+            return linesOpacity[line];
         }
 
+        // The lines opacity are stored in an array indexed by line that may be shared with other attributes, so only a copy is handed out.
         protected HashMap<Integer, Hologram.Opacity> getLinesOpacity() {
+            HashMap<Integer, Hologram.Opacity> linesOpacity = new HashMap<>();
+            if(this.linesOpacity != null) for(int line = 0; line < this.linesOpacity.length; line++) if(this.linesOpacity[line] != null) linesOpacity.put(line, this.linesOpacity[line]);
             return linesOpacity;
         }
 
-        protected void setLinesOpacity(HashMap<Integer, Hologram.Opacity> linesOpacity) {
+        protected void setLinesOpacity(@Nullable HashMap<Integer, Hologram.Opacity> linesOpacity) {
+            Hologram.Opacity[] opacities = null;
+            if(linesOpacity != null && !linesOpacity.isEmpty()){
+                Validate.isTrue(linesOpacity.keySet().stream().allMatch(x-> x >= 0), "Error setting lines opacity, line cannot be negative.");
+                opacities = new Hologram.Opacity[Collections.max(linesOpacity.keySet()) + 1];
+                for(Map.Entry<Integer, Hologram.Opacity> line : linesOpacity.entrySet()) opacities[line.getKey()] = line.getValue();
+            }
+            setLinesOpacity(opacities);
+        }
+
+        private void setLinesOpacity(@Nullable Hologram.Opacity[] linesOpacity) {
             this.linesOpacity = linesOpacity;
+            shared &= ~SHARED_LINES_OPACITY;
+        }
+
+        protected void shareLinesOpacity(@Nullable Hologram.Opacity[] linesOpacity) {
+            this.linesOpacity = linesOpacity;
+            shared |= SHARED_LINES_OPACITY;
+        }
+
+        private Hologram.Opacity[] getOwnLinesOpacity(int length) {
+            if(linesOpacity == null) linesOpacity = new Hologram.Opacity[length];
+            else if(linesOpacity.length < length) linesOpacity = Arrays.copyOf(linesOpacity, length);
+            else if((shared & SHARED_LINES_OPACITY) != 0) linesOpacity = linesOpacity.clone();
+            shared &= ~SHARED_LINES_OPACITY;
+            return linesOpacity;
         }
 
         public void resetLineOpacity(int line){
-            if(linesOpacity.containsKey(line)) linesOpacity.remove(line);
+            if(getLineOpacity(line, null) != null) getOwnLinesOpacity(line + 1)[line] = null;
         }
 
-        public void resetLinesOpacity(){ linesOpacity = new HashMap<>(); }
+        public void resetLinesOpacity(){ setLinesOpacity((Hologram.Opacity[]) null); }
     }
 
     /**
@@ -4758,22 +6088,37 @@ public abstract class NPC {
      */
     public static class Placeholders {
 
-        private static HashMap<String, BiFunction<NPC, Player, String>> placeholders;
+        private static final String CUSTOM_DATA_PREFIX = "customData:";
+        private static final int MAX_TEMPLATES = 4096;
+        private static final int MAX_NESTED_DEPTH = 8;
+        // Access ordered, so the texts that are not rendered anymore are the ones dropped.
+        private static final Map<String, Template> TEMPLATES = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                return size() > MAX_TEMPLATES;
+            }
+        });
+        private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(64));
+        // One tick, so every line rendered for every viewer in the same update shares the value.
+        private static final Duration DEFAULT_TTL = Duration.ofMillis(50);
+        private static HashMap<String, Placeholder> placeholders;
+        private static volatile boolean nestedReplacement = false;
 
         static{
             placeholders = new HashMap<>();
-            addPlaceholder("playerName", (npc, player) -> player.getName());
-            addPlaceholder("playerDisplayName", (npc, player) -> player.getDisplayName());
-            addPlaceholder("playerUUID", (npc, player) -> player.getUniqueId().toString());
-            addPlaceholder("playerWorld", (npc, player) -> player.getWorld().getName());
-            addPlaceholder("npcCode", (npc, player) -> npc.getCode());
-            addPlaceholder("npcSimpleCode", (npc, player) -> npc.getSimpleCode());
-            addPlaceholder("npcWorld", (npc, player) -> npc.getWorld().getName());
-            addPlaceholder("npcTabListName", (npc, player) -> npc.getCustomTabListName());
-            addPlaceholder("npcPluginName", (npc, player) -> npc.getPlugin().getDescription().getName());
-            addPlaceholder("npcPluginVersion", (npc, player) -> npc.getPlugin().getDescription().getVersion());
-            addPlaceholder("serverOnlinePlayers", (npc, player) -> "" + npc.getPlugin().getServer().getOnlinePlayers().size());
-            addPlaceholder("serverMaxPlayers", (npc, player) -> "" + npc.getPlugin().getServer().getMaxPlayers());
+            addPlaceholder("playerName", Scope.PLAYER, (npc, player) -> player.getName());
+            addPlaceholder("playerDisplayName", Scope.PLAYER, (npc, player) -> player.getDisplayName());
+            addPlaceholder("playerUUID", Scope.PLAYER, (npc, player) -> player.getUniqueId().toString());
+            addPlaceholder("playerWorld", Scope.PLAYER, (npc, player) -> player.getWorld().getName());
+            addPlaceholder("npcCode", Scope.NPC, (npc, player) -> npc.getCode());
+            addPlaceholder("npcSimpleCode", Scope.NPC, (npc, player) -> npc.getSimpleCode());
+            addPlaceholder("npcWorld", Scope.NPC, (npc, player) -> npc.getWorld().getName());
+            // The tab list name of a Global NPC can be customized per player.
+            addPlaceholder("npcTabListName", Scope.NPC_PLAYER, (npc, player) -> npc.getCustomTabListName());
+            addPlaceholder("npcPluginName", Scope.NPC, (npc, player) -> npc.getPlugin().getDescription().getName());
+            addPlaceholder("npcPluginVersion", Scope.NPC, (npc, player) -> npc.getPlugin().getDescription().getVersion());
+            addPlaceholder("serverOnlinePlayers", Scope.SERVER, (npc, player) -> "" + npc.getPlugin().getServer().getOnlinePlayers().size());
+            addPlaceholder("serverMaxPlayers", Scope.SERVER, (npc, player) -> "" + npc.getPlugin().getServer().getMaxPlayers());
         }
 
         private Placeholders(){}
@@ -4797,11 +6142,118 @@ public abstract class NPC {
             return list;
         }
 
+        /**
+         * The placeholder is evaluated for every NPC and player, without caching.
+         */
         public static void addPlaceholder(@Nonnull String placeholder, @Nonnull BiFunction<NPC, Player, String> replacement){
+            addPlaceholder(placeholder, Scope.NPC_PLAYER, Duration.ZERO, replacement);
+        }
+
+        /**
+         * The value is cached by the scope for one tick.
+         */
+        public static void addPlaceholder(@Nonnull String placeholder, @Nonnull Scope scope, @Nonnull BiFunction<NPC, Player, String> replacement){
+            addPlaceholder(placeholder, scope, DEFAULT_TTL, replacement);
+        }
+
+        /**
+         * @param scope what the value depends on. The value is cached once per server, NPC, player or NPC and player.
+         * @param ttl how long a cached value is used. Zero disables the cache.
+         */
+        public static void addPlaceholder(@Nonnull String placeholder, @Nonnull Scope scope, @Nonnull Duration ttl, @Nonnull BiFunction<NPC, Player, String> replacement){
             Validate.notNull(placeholder, "Placeholder cannot be null.");
+            Validate.notNull(scope, "Scope cannot be null.");
+            Validate.notNull(ttl, "TTL cannot be null.");
             Validate.notNull(replacement, "Replacement cannot be null.");
+            Validate.isTrue(!ttl.isNegative(), "TTL cannot be negative.");
             Validate.isTrue(!placeholders.containsKey(placeholder), "Placeholder \"" + placeholder + "\" settled previously");
-            placeholders.put(placeholder, replacement);
+            placeholders.put(placeholder, new Placeholder(replacement, scope, ttl.toNanos()));
+        }
+
+        public static Scope getScope(@Nonnull String placeholder){
+            Validate.notNull(placeholder, "Placeholder cannot be null.");
+            Placeholder registered = placeholders.get(placeholder);
+            return registered != null ? registered.scope : null;
+        }
+
+        /**
+         * Discards the cached values of the placeholder, so they are evaluated again the next time.
+         */
+        public static void invalidate(@Nonnull String placeholder){
+            Validate.notNull(placeholder, "Placeholder cannot be null.");
+            Placeholder registered = placeholders.get(placeholder);
+            if(registered != null) registered.cache.clear();
+        }
+
+        /**
+         * Discards the cached values of the NPC, when it is removed.
+         */
+        protected static void invalidate(@Nonnull NPC npc){
+            placeholders.values().forEach(x-> x.cache.keySet().removeIf(key -> key == npc || (key instanceof Placeholder.NPCPlayerKey npcPlayer && npcPlayer.npc() == npc)));
+        }
+
+        /**
+         * Discards the cached values of the player and of its personal NPCs, when the player leaves.
+         */
+        protected static void invalidate(@Nonnull UUID player){
+            placeholders.values().forEach(x-> x.cache.keySet().removeIf(key -> player.equals(key)
+                    || (key instanceof Placeholder.NPCPlayerKey npcPlayer && npcPlayer.player().equals(player))
+                    || (key instanceof NPC.Personal personal && personal.getPlayer().getUniqueId().equals(player))));
+        }
+
+        public enum Scope{
+            /** The value is the same for every NPC and player. */
+            SERVER,
+            /**
+             * The value depends only on the NPC. The value of a Global NPC is shared by all its viewers, so placeholders that read
+             * attributes that can be customized per player, like the custom tab list name, must use {@link #NPC_PLAYER}.
+             */
+            NPC,
+            /** The value depends only on the player. */
+            PLAYER,
+            /** The value depends on both the NPC and the player. */
+            NPC_PLAYER,
+        }
+
+        private static class Placeholder {
+
+            private static final Object SERVER_KEY = new Object();
+            // Entries of removed NPCs and players that left are invalidated, expired ones are removed once the cache grows this much.
+            private static final int PURGE_SIZE = 1024;
+
+            private final BiFunction<NPC, Player, String> replacement;
+            private final Scope scope;
+            private final long ttlNanos;
+            private final Map<Object, Cached> cache;
+
+            private Placeholder(BiFunction<NPC, Player, String> replacement, Scope scope, long ttlNanos){
+                this.replacement = replacement;
+                this.scope = scope;
+                this.ttlNanos = ttlNanos;
+                this.cache = new ConcurrentHashMap<>();
+            }
+
+            // The values of the personal NPCs of a Global NPC are cached by the Global NPC, so they are shared by every viewer.
+            private String apply(NPC npc, NPC keyNPC, Player player){
+                if(ttlNanos <= 0) return replacement.apply(npc, player);
+                Object key = switch (scope){
+                    case SERVER -> SERVER_KEY;
+                    case NPC -> keyNPC;
+                    case PLAYER -> player.getUniqueId();
+                    case NPC_PLAYER -> new NPCPlayerKey(keyNPC, player.getUniqueId());
+                };
+                long now = System.nanoTime();
+                Cached cached = cache.get(key);
+                if(cached != null && now - cached.time() < ttlNanos) return cached.value();
+                String value = replacement.apply(npc, player);
+                if(cache.size() >= PURGE_SIZE) cache.values().removeIf(x-> now - x.time() >= ttlNanos);
+                cache.put(key, new Cached(value, now));
+                return value;
+            }
+
+            private record Cached(String value, long time){}
+
+            private record NPCPlayerKey(NPC npc, UUID player){}
         }
 
         public static boolean existsPlaceholder(@Nonnull String placeholder){
@@ -4809,28 +6261,104 @@ public abstract class NPC {
             return placeholders.containsKey(placeholder);
         }
 
+        /**
+         * Replaces the placeholders of the text once. Placeholders inside the replaced values are left as they are,
+         * unless {@link #setNestedReplacement(boolean)} is enabled.
+         */
         public static String replace(@Nonnull NPC npc, @Nonnull Player player, @Nonnull String string){
             Validate.notNull(npc, "NPC cannot be null.");
             Validate.notNull(player, "Player cannot be null.");
             if(string == null) return "";
-            for(String placeholder : placeholders.keySet()){
-                if(!string.contains("{" + placeholder + "}")) continue;
-                string = r(string, placeholder, placeholders.get(placeholder).apply(npc, player));
-            }
+            return replace(npc, player, string, 0);
+        }
+
+        /**
+         * If enabled, placeholders inside the values of other placeholders are replaced too, for example a custom
+         * tab list name or a custom data value that contains {playerName}. Up to 8 levels, so placeholders that contain
+         * themselves do not loop. Disabled by default, as every value has to be scanned again.
+         */
+        public static void setNestedReplacement(boolean nestedReplacement){
+            Placeholders.nestedReplacement = nestedReplacement;
+        }
+
+        public static boolean isNestedReplacement(){
+            return nestedReplacement;
+        }
+
+        private static String replace(NPC npc, Player player, String string, int depth){
+            Template template = getTemplate(string);
+            if(template.keys.length == 0) return string;
             NPC customDataNPC = npc;
             if(npc instanceof Personal){
                 Personal personal = (Personal) npc;
                 if(personal.hasGlobal()) customDataNPC = personal.getGlobal();
             }
-            for(String key : customDataNPC.getCustomDataKeys()){
-                if(!string.contains("{customData:" + key + "}")) continue;
-                string = r(string, "customData:" + key, customDataNPC.getCustomData(key));
+            // Nested values are rendered while the outer builder is in use.
+            StringBuilder builder = depth == 0 ? BUILDER.get() : new StringBuilder(64);
+            builder.setLength(0);
+            for(int i = 0; i < template.keys.length; i++){
+                builder.append(template.literals[i]);
+                String key = template.keys[i];
+                String value = null;
+                Placeholder replacement = placeholders.get(key);
+                if(replacement != null) value = replacement.apply(npc, customDataNPC, player);
+                else if(key.startsWith(CUSTOM_DATA_PREFIX)){
+                    String customDataKey = key.substring(CUSTOM_DATA_PREFIX.length());
+                    if(customDataNPC.getCustomDataKeys().contains(customDataKey)) value = customDataNPC.getCustomData(customDataKey);
+                }
+                if(nestedReplacement && value != null && depth < MAX_NESTED_DEPTH && value.indexOf('{') >= 0) value = replace(npc, player, value, depth + 1);
+                // Unknown placeholders are left as they are.
+                if(value != null || replacement != null) builder.append(value);
+                else builder.append('{').append(key).append('}');
             }
-            return string;
+            builder.append(template.literals[template.keys.length]);
+            return builder.toString();
         }
 
-        private static String r(String string, String placeHolder, String value){
-            return string.replaceAll("\\{" + placeHolder +"\\}", value);
+        private static Template getTemplate(String string){
+            Template template = TEMPLATES.get(string);
+            if(template != null) return template;
+            template = Template.parse(string);
+            TEMPLATES.put(string, template);
+            return template;
+        }
+
+        /**
+         * A text split into the literals between placeholders and the keys of the placeholders, parsed once per text.
+         * There is always one literal more than keys.
+         */
+        private static class Template {
+
+            private final String[] literals;
+            private final String[] keys;
+
+            private Template(String[] literals, String[] keys){
+                this.literals = literals;
+                this.keys = keys;
+            }
+
+            private static Template parse(String string){
+                List<String> literals = new ArrayList<>();
+                List<String> keys = new ArrayList<>();
+                int literalStart = 0;
+                int open = string.indexOf('{');
+                while(open >= 0){
+                    int close = string.indexOf('}', open + 1);
+                    if(close < 0) break;
+                    int nextOpen = string.indexOf('{', open + 1);
+                    // With "{{key}" the first brace is part of the literal.
+                    if(nextOpen >= 0 && nextOpen < close){
+                        open = nextOpen;
+                        continue;
+                    }
+                    literals.add(string.substring(literalStart, open));
+                    keys.add(string.substring(open + 1, close));
+                    literalStart = close + 1;
+                    open = string.indexOf('{', literalStart);
+                }
+                literals.add(string.substring(literalStart));
+                return new Template(literals.toArray(new String[0]), keys.toArray(new String[0]));
+            }
         }
 
     }
@@ -3,10 +3,10 @@ package dev.sergiferry.playernpc.api;
 import com.google.gson.JsonObject;
 import dev.sergiferry.playernpc.PlayerNPCPlugin;
 import dev.sergiferry.playernpc.command.NPCGlobalCommand;
+import dev.sergiferry.playernpc.nms.NMSAccessors;
 import dev.sergiferry.playernpc.nms.minecraft.NMSEntityPlayer;
 import dev.sergiferry.playernpc.nms.minecraft.NMSNetworkManager;
 import dev.sergiferry.playernpc.utils.StringUtils;
-import dev.sergiferry.spigot.nms.NMSUtils;
 import dev.sergiferry.spigot.nms.craftbukkit.NMSCraftPlayer;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -37,8 +37,12 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -46,6 +50,9 @@ import java.util.stream.Collectors;
 /**
  * NPCLib is a simple library to create NPCs and customize them.
  * <p>Spigot resource https://www.spigotmc.org/resources/playernpc.93625/
+ * <p>The registries of plugins, players and NPCs are concurrent, so lookups can be done from any thread
+ * (async tasks, skin callbacks or netty threads). Methods that spawn, destroy or update NPCs send packets
+ * and touch Bukkit entities, and must be called from the main thread.
  *
  * @author  SergiFerry
  * @since 2021.1
@@ -55,47 +62,70 @@ public class NPCLib implements Listener {
     private static NPCLib instance;
 
     private final PlayerNPCPlugin plugin;
-    private final HashMap<Player, PlayerManager> playerManager;
-    private final HashMap<String, NPC.Global> globalNPCs;
-    private final HashMap<Plugin, PluginManager> pluginManager;
+    private final Map<Player, PlayerManager> playerManager;
+    private final Map<String, NPC.Global> globalNPCs;
+    private final Map<Plugin, PluginManager> pluginManager;
     private FileConfiguration config;
     private boolean debug;
+    private int spatialCellSize;
+    private boolean packetBatching;
+    private int skinCacheKilobytes;
+    private Integer flushTaskID;
 
     private NPCLib(@Nonnull PlayerNPCPlugin plugin){
         instance = this;
         this.plugin = plugin;
-        this.playerManager = new HashMap<>();
-        this.globalNPCs = new HashMap<>();
-        this.pluginManager = new HashMap<>();
+        this.playerManager = new ConcurrentHashMap<>();
+        this.globalNPCs = new ConcurrentHashMap<>();
+        this.pluginManager = new ConcurrentHashMap<>();
         this.debug = false;
+        this.spatialCellSize = 16;
+        this.packetBatching = true;
+        this.skinCacheKilobytes = 4096;
         registerPlugin(plugin);
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
     }
 
+    /**
+     * Must be called from the main thread, as it registers the listeners of the plugin manager.
+     */
     public PluginManager registerPlugin(@Nonnull Plugin plugin){
         Validate.notNull(plugin, "Cannot register plugin manager from a null plugin.");
         Validate.isTrue(!pluginManager.containsKey(plugin), "This plugin is already registered.");
         PluginManager pluginManager = new PluginManager(plugin, this);
-        this.pluginManager.put(plugin, pluginManager);
+        Validate.isTrue(this.pluginManager.putIfAbsent(plugin, pluginManager) == null, "This plugin is already registered.");
         Bukkit.getConsoleSender().sendMessage(this.plugin.getPrefix()  + "§7Registered §e" + plugin.getName() + " §7plugin on the NPCLib");
         return pluginManager;
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public boolean isRegistered(@Nonnull Plugin plugin){
         Validate.notNull(plugin, "Cannot verify plugin manager from a null plugin.");
         return pluginManager.containsKey(plugin);
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public PluginManager getPluginManager(@Nonnull Plugin plugin){
         Validate.notNull(plugin, "Cannot get plugin manager from a null plugin.");
-        Validate.isTrue(this.pluginManager.containsKey(plugin), "This plugin is not registered.");
-        return this.pluginManager.get(plugin);
+        PluginManager pluginManager = this.pluginManager.get(plugin);
+        Validate.notNull(pluginManager, "This plugin is not registered.");
+        return pluginManager;
     }
 
+    /**
+     * Safe to call from any thread. The list is a snapshot.
+     */
     public List<Plugin> getRegisteredPlugins(){
         return pluginManager.keySet().stream().toList();
     }
 
+    /**
+     * Safe to call from any thread, the NPC is only registered. Creating and showing it must be done from the main thread.
+     */
     public NPC.Personal generatePersonalNPC(@Nonnull Player player, @Nonnull Plugin plugin, @Nonnull String code, @Nonnull Location location){
         Validate.notNull(plugin, "You cannot create an NPC with a null Plugin");
         Validate.notNull(player, "You cannot create an NPC with a null Player");
@@ -107,6 +137,10 @@ public class NPCLib implements Listener {
         return generatePlayerPersonalNPC(player, plugin, a(plugin, code), location);
     }
 
+    /**
+     * Must be called from the main thread, as the Global NPC is created and shown to the online players.
+     * If two threads generate the same code at once, only one of them succeeds.
+     */
     public NPC.Global generateGlobalNPC(@Nonnull Plugin plugin, @Nonnull String code, @Nonnull NPC.Global.Visibility visibility, @Nullable Predicate<Player> visibilityRequirement, @Nonnull Location location){
         Validate.notNull(plugin, "You cannot create an NPC with a null Plugin");
         Validate.notNull(code, "You cannot create an NPC with a null code");
@@ -138,10 +172,13 @@ public class NPCLib implements Listener {
     private NPC.Global generatePlayerGlobalNPC(Plugin plugin, String code, NPC.Global.Visibility visibility, Predicate<Player> visibilityRequirement, Location location){
         Validate.isTrue(!globalNPCs.containsKey(code), "Global NPC with code " + code + " already exists.");
         NPC.Global global = new NPC.Global(this, plugin, code, visibility, visibilityRequirement, location);
-        globalNPCs.put(code, global);
+        Validate.isTrue(globalNPCs.putIfAbsent(code, global) == null, "Global NPC with code " + code + " already exists.");
         return global;
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public NPC.Personal getPersonalNPC(@Nonnull Player player, @Nonnull Plugin plugin, @Nonnull String id){
         Validate.notNull(player, "Player must not be null");
         Validate.notNull(plugin, "Plugin must not be null");
@@ -149,6 +186,9 @@ public class NPCLib implements Listener {
         return getNPCPlayerManager(player).getNPC(a(plugin, id));
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public NPC.Global getGlobalNPC(@Nonnull Plugin plugin, @Nonnull String id){
         Validate.notNull(plugin, "Plugin must not be null");
         Validate.notNull(id, "NPC id must not be null");
@@ -168,6 +208,9 @@ public class NPCLib implements Listener {
         return globalNPCs.get(id);
     }
 
+    /**
+     * Safe to call from any thread. The returned set is a snapshot, the same applies to the rest of getters of NPC sets.
+     */
     public Set<NPC.Personal> getPersonalNPCs(@Nonnull Player player, @Nonnull Plugin plugin){
         Validate.notNull(player, "Player must not be null");
         Validate.notNull(plugin, "Plugin must not be null");
@@ -198,7 +241,8 @@ public class NPCLib implements Listener {
     public Set<NPC.Global> getAllGlobalNPCs(@Nonnull Plugin plugin){
         Validate.notNull(plugin, "Plugin must not be null");
         Set<NPC.Global> npcs = new HashSet<>();
-        globalNPCs.keySet().stream().filter(x-> x.startsWith(plugin.getName().toLowerCase() + ".")).forEach(x-> npcs.add(getGlobalNPC(x)));
+        String prefix = plugin.getName().toLowerCase() + ".";
+        globalNPCs.forEach((code, npc)-> { if(code.startsWith(prefix)) npcs.add(npc); });
         return npcs;
     }
 
@@ -219,6 +263,9 @@ public class NPCLib implements Listener {
         return NPCGlobalCommand.getCommands(plugin);
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public boolean hasPersonalNPC(@Nonnull Player player, @Nonnull Plugin plugin, @Nonnull String id){
         Validate.notNull(player, "Player must not be null");
         Validate.notNull(plugin, "Plugin must not be null");
@@ -233,6 +280,9 @@ public class NPCLib implements Listener {
         return getPersonalNPC(player, id) != null;
     }
 
+    /**
+     * Must be called from the main thread, as the NPC is destroyed for the player.
+     */
     public void removePersonalNPC(@Nonnull Player player, @Nonnull Plugin plugin, @Nonnull String id){
         Validate.notNull(player, "Player must not be null");
         Validate.notNull(player, "Plugin must not be null");
@@ -248,12 +298,17 @@ public class NPCLib implements Listener {
         }
         npc.destroy();
         getNPCPlayerManager(npc.getPlayer()).removeNPC(npc.getCode());
+        NPC.Placeholders.invalidate(npc);
     }
 
+    /**
+     * Must be called from the main thread, as the NPC is destroyed for every player.
+     */
     public void removeGlobalNPC(@Nonnull NPC.Global npc){
         Validate.notNull(npc, "NPC was not found");
         npc.destroy();
         globalNPCs.remove(npc.getCode());
+        NPC.Placeholders.invalidate(npc);
     }
 
     public void removeNPC(@Nonnull NPC npc){
@@ -272,6 +327,52 @@ public class NPCLib implements Listener {
         return debug;
     }
 
+    /**
+     * Personal NPCs of each player are bucketed by world and by square cells of this size (in blocks),
+     * so only the NPCs in cells around the player are checked when the player moves.
+     */
+    public void setSpatialCellSize(int spatialCellSize) {
+        if(spatialCellSize < 1) spatialCellSize = 1;
+        if(this.spatialCellSize == spatialCellSize) return;
+        this.spatialCellSize = spatialCellSize;
+        playerManager.values().forEach(x-> x.rebuildSpatialIndex());
+        saveConfig();
+    }
+
+    public int getSpatialCellSize() {
+        return spatialCellSize;
+    }
+
+    /**
+     * When enabled, NPC packets are written to the player's channel without flushing and every channel
+     * is flushed once per tick. When disabled, every packet is sent and flushed immediately.
+     */
+    public void setPacketBatching(boolean packetBatching) {
+        if(this.packetBatching == packetBatching) return;
+        this.packetBatching = packetBatching;
+        flushPackets();
+        saveConfig();
+    }
+
+    public boolean isPacketBatching() {
+        return packetBatching;
+    }
+
+    /**
+     * Maximum approximate memory used by the skins cached by player name. Least recently used skins are evicted first.
+     */
+    public void setSkinCacheKilobytes(int skinCacheKilobytes) {
+        if(skinCacheKilobytes < 0) skinCacheKilobytes = 0;
+        if(this.skinCacheKilobytes == skinCacheKilobytes) return;
+        this.skinCacheKilobytes = skinCacheKilobytes;
+        NPC.Skin.getCache().setMaxWeight(skinCacheKilobytes * 1024L);
+        saveConfig();
+    }
+
+    public int getSkinCacheKilobytes() {
+        return skinCacheKilobytes;
+    }
+
     @Deprecated
     public Double getDefaultHideDistance() {
         return NPC.Attributes.getDefaultHideDistance();
@@ -309,6 +410,13 @@ public class NPCLib implements Listener {
         this.config  = YamlConfiguration.loadConfiguration(file);
         HashMap<String, Object> defaults = new HashMap<>();
         defaults.put("debug", this.debug);
+        defaults.put("spatialIndex.cellSize", this.spatialCellSize);
+        defaults.put("packetBatching.enabled", this.packetBatching);
+        defaults.put("skinCache.kilobytes", this.skinCacheKilobytes);
+        defaults.put("mojangAPI.bulkProfilesURL", NPC.Skin.MojangAPI.getBulkProfilesURL());
+        defaults.put("mojangAPI.profilesURL", NPC.Skin.MojangAPI.getProfilesURL());
+        defaults.put("mojangAPI.sessionURL", NPC.Skin.MojangAPI.getSessionURL());
+        defaults.put("mojangAPI.timeoutSeconds", NPC.Skin.MojangAPI.getTimeout().getSeconds());
         defaults.put("gazeUpdate.ticks", getPluginManager(plugin).updateGazeTicks);
         defaults.put("gazeUpdate.type", getPluginManager(plugin).updateGazeType.name());
         defaults.put("tabListHide.ticks", getPluginManager(plugin).ticksUntilTabListHide);
@@ -325,6 +433,12 @@ public class NPCLib implements Listener {
         if(m) { try { config.save(file); } catch (IOException e) { printError(e); } }
         //
         this.debug = config.getBoolean("debug");
+        this.spatialCellSize = Math.max(1, config.getInt("spatialIndex.cellSize"));
+        this.packetBatching = config.getBoolean("packetBatching.enabled");
+        this.skinCacheKilobytes = Math.max(0, config.getInt("skinCache.kilobytes"));
+        NPC.Skin.getCache().setMaxWeight(skinCacheKilobytes * 1024L);
+        NPC.Skin.MojangAPI.setBaseURLs(config.getString("mojangAPI.bulkProfilesURL"), config.getString("mojangAPI.profilesURL"), config.getString("mojangAPI.sessionURL"));
+        NPC.Skin.MojangAPI.setTimeout(Duration.ofSeconds(Math.max(1L, config.getLong("mojangAPI.timeoutSeconds"))));
         getPluginManager(plugin).ticksUntilTabListHide = config.getInt("tabListHide.ticks");
         getPluginManager(plugin).skinUpdateFrequency = config.getObject("skinUpdate.frequency", SkinUpdateFrequency.class);
         getPluginManager(plugin).updateGazeTicks = config.getInt("gazeUpdate.ticks");
@@ -336,6 +450,13 @@ public class NPCLib implements Listener {
         if(config == null) return;
         File file = checkFileExists();
         config.set("debug", this.debug);
+        config.set("spatialIndex.cellSize", this.spatialCellSize);
+        config.set("packetBatching.enabled", this.packetBatching);
+        config.set("skinCache.kilobytes", this.skinCacheKilobytes);
+        config.set("mojangAPI.bulkProfilesURL", NPC.Skin.MojangAPI.getBulkProfilesURL());
+        config.set("mojangAPI.profilesURL", NPC.Skin.MojangAPI.getProfilesURL());
+        config.set("mojangAPI.sessionURL", NPC.Skin.MojangAPI.getSessionURL());
+        config.set("mojangAPI.timeoutSeconds", NPC.Skin.MojangAPI.getTimeout().getSeconds());
         config.set("gazeUpdate.ticks", getPluginManager(plugin).updateGazeTicks);
         config.set("gazeUpdate.type", getPluginManager(plugin).updateGazeType.name());
         config.set("tabListHide.ticks", getPluginManager(plugin).ticksUntilTabListHide);
@@ -345,6 +466,7 @@ public class NPCLib implements Listener {
 
     private void onEnable(PlayerNPCPlugin playerNPCPlugin){
         getPluginManager(playerNPCPlugin).onEnable();
+        flushTaskID = Bukkit.getScheduler().runTaskTimer(getPlugin(), ()-> flushPackets(), 1L, 1L).getTaskId();
         Bukkit.getScheduler().runTaskLater(getPlugin(), ()-> { playerNPCPlugin.getServer().getOnlinePlayers().forEach(x-> {
             join(x);
             for(NPC.Global global : getAllGlobalNPCs()){
@@ -356,16 +478,23 @@ public class NPCLib implements Listener {
     private void onDisable(PlayerNPCPlugin playerNPCPlugin){
         savePersistentNPCs();
         playerNPCPlugin.getServer().getOnlinePlayers().forEach(x-> quit(x));
+        if(flushTaskID != null) Bukkit.getScheduler().cancelTask(flushTaskID);
+        NPC.Skin.shutdownFetchExecutor();
         getPluginManager(playerNPCPlugin).onDisable();
     }
 
+    private void flushPackets(){
+        playerManager.values().forEach(x-> x.flushPackets());
+    }
+
     private PlayerNPCPlugin getPlayerNPCPlugin(){ return (PlayerNPCPlugin) plugin;}
 
     protected PlayerManager getNPCPlayerManager(Player player){
-        if(playerManager.containsKey(player)) return playerManager.get(player);
-        PlayerManager npcPlayerManager = new PlayerManager(this, player);
-        playerManager.put(player, npcPlayerManager);
-        return npcPlayerManager;
+        PlayerManager npcPlayerManager = playerManager.get(player);
+        if(npcPlayerManager != null) return npcPlayerManager;
+        // A player that has already left gets a manager that is not registered, so he is not added again.
+        if(!player.isOnline()) return new PlayerManager(this, player);
+        return playerManager.computeIfAbsent(player, x-> new PlayerManager(this, x));
     }
 
     private void join(Player player){
@@ -385,7 +514,10 @@ public class NPCLib implements Listener {
         }
         PlayerManager npcPlayerManager = getNPCPlayerManager(player);
         npcPlayerManager.destroyAll();
+        npcPlayerManager.flushPackets();
         npcPlayerManager.getPacketReader().unInject();
+        playerManager.remove(player);
+        NPC.Placeholders.invalidate(player.getUniqueId());
     }
 
     @EventHandler
@@ -448,10 +580,15 @@ public class NPCLib implements Listener {
         protected Integer ticksUntilTabListHide;
         protected Integer taskID;
         protected SkinUpdateFrequency skinUpdateFrequency;
+        private final Executor mainThreadExecutor;
 
         protected PluginManager(Plugin plugin, NPCLib npcLib) {
             this.plugin = plugin;
             this.npcLib = npcLib;
+            this.mainThreadExecutor = runnable -> {
+                if(Bukkit.isPrimaryThread()) runnable.run();
+                else plugin.getServer().getScheduler().runTask(plugin, runnable);
+            };
             this.updateGazeTicks = 5;
             this.ticksUntilTabListHide = 10;
             this.skinUpdateFrequency = new SkinUpdateFrequency(1, TimeUnit.DAYS);
@@ -525,6 +662,14 @@ public class NPCLib implements Listener {
             return skinUpdateFrequency;
         }
 
+        /**
+         * Runs tasks on the main thread of the server, scheduled by this plugin. Useful to continue futures like
+         * {@code NPC.Skin.fetchSkin(...).thenAcceptAsync(skin -> ..., pluginManager.getMainThreadExecutor())}
+         */
+        public Executor getMainThreadExecutor() {
+            return mainThreadExecutor;
+        }
+
         public void setCommandColor(Command.Color color){
             if(plugin.equals(PlayerNPCPlugin.getInstance())) return;
             this.commandColor = color;
@@ -596,6 +741,10 @@ public class NPCLib implements Listener {
             return hash;
         }
 
+        public long toMillis(){
+            return timeUnit.toMillis(value);
+        }
+
         public static SkinUpdateFrequency deserialize(Map<String, Object> map){
             return new SkinUpdateFrequency((Integer) map.get("value"), TimeUnit.valueOf((String) map.get("timeUnit")));
         }
@@ -639,38 +788,145 @@ public class NPCLib implements Listener {
 
         private final NPCLib npcLib;
         private final Player player;
-        private final HashMap<String, NPC.Personal> npcs;
+        private final Map<String, NPC.Personal> npcs;
+        private final Map<Integer, NPC.Personal> entityIDs;
         private final PlayerManager.PacketReader packetReader;
+        private final Map<String, PlayerManager.SpatialIndex> spatialIndex;
+        private final Map<NPC.Personal, PlayerManager.SpatialIndex> spatialIndexed;
+        private final Map<Plugin, Set<NPC.Personal>> nearby;
+        private final PlayerManager.VisibilityPass visibilityPass;
         private final Map<World, Set<NPC.Personal>> hidden;
         private final Long lastEnter;
+        private volatile boolean pendingFlush;
 
         protected PlayerManager(NPCLib npcLib, Player player) {
             this.npcLib = npcLib;
             this.player = player;
-            this.npcs = new HashMap<>();
+            this.npcs = new ConcurrentHashMap<>();
+            this.entityIDs = new ConcurrentHashMap<>();
             this.packetReader = new PlayerManager.PacketReader(this);
-            this.hidden = new HashMap<>();
+            this.spatialIndex = new ConcurrentHashMap<>();
+            this.spatialIndexed = new ConcurrentHashMap<>();
+            this.nearby = new ConcurrentHashMap<>();
+            this.visibilityPass = new PlayerManager.VisibilityPass();
+            this.hidden = new ConcurrentHashMap<>();
             this.lastEnter = System.currentTimeMillis();
         }
 
         protected void set(String s, NPC.Personal npc){
             npcs.put(s, npc);
+            updateSpatialIndex(npc);
         }
 
-        protected NPC.Personal getNPC(Integer entityID){
-            return npcs.values().stream().filter(x-> x.isCreated() && NMSEntityPlayer.getEntityID(x.getEntity()).equals(entityID)).findAny().orElse(null);
+        protected NPC.Personal getNPC(int entityID){
+            return entityIDs.get(entityID);
+        }
+
+        protected boolean isNPC(int entityID){
+            return entityIDs.containsKey(entityID);
+        }
+
+        // The index is read from the netty thread while the main thread creates and destroys NPCs.
+        protected void setEntityID(int entityID, NPC.Personal npc){
+            entityIDs.put(entityID, npc);
+        }
+
+        protected void removeEntityID(int entityID){
+            entityIDs.remove(entityID);
+        }
+
+        /**
+         * Writes the packet to the player's channel. If packet batching is enabled it will be flushed at the end of the tick,
+         * together with the rest of NPC packets of this player.
+         */
+        protected void sendPacket(Packet<?> packet){
+            Channel channel = packetReader.getChannel();
+            if(!npcLib.isPacketBatching() || channel == null || !channel.isOpen()){
+                NMSCraftPlayer.sendPacket(player, packet);
+                return;
+            }
+            channel.write(packet, channel.voidPromise());
+            pendingFlush = true;
+        }
+
+        /**
+         * Writes the encoded bytes of the template with the entity id of this player's copy. The bytes skip the packet encoder,
+         * so the packet object is only created if there is no open channel or the template could not be encoded.
+         */
+        protected void sendPacket(PacketTemplate template, int entityID){
+            Channel channel = packetReader.getChannel();
+            if(!template.isEncoded() || channel == null || !channel.isOpen()){
+                sendPacket(template.create(entityID));
+                return;
+            }
+            if(!npcLib.isPacketBatching()){
+                channel.writeAndFlush(template.encode(entityID), channel.voidPromise());
+                return;
+            }
+            channel.write(template.encode(entityID), channel.voidPromise());
+            pendingFlush = true;
+        }
+
+        protected void flushPackets(){
+            if(!pendingFlush) return;
+            pendingFlush = false;
+            Channel channel = packetReader.getChannel();
+            if(channel != null && channel.isOpen()) channel.flush();
         }
 
         protected void removeNPC(String code){
-            npcs.remove(code);
+            NPC.Personal npc = npcs.remove(code);
+            if(npc != null) removeSpatialIndex(npc);
         }
 
         protected void updateMove(Plugin plugin){
-            getNPCs(getPlayer().getWorld()).stream().filter(x-> x.getPlugin().equals(plugin) && x.isCreated()).forEach(x-> x.updateMove());
+            Location location = getPlayer().getLocation();
+            PlayerManager.SpatialIndex index = spatialIndex.get(location.getWorld().getName());
+            Set<NPC.Personal> inCells = index != null ? index.getNearby(location.getX(), location.getZ()) : new HashSet<>();
+            Set<NPC.Personal> last = nearby.getOrDefault(plugin, Collections.emptySet());
+            Set<NPC.Personal> now = ConcurrentHashMap.newKeySet();
+            for(NPC.Personal npc : inCells){
+                if(npc.getPlugin().equals(plugin)) now.add(npc);
+            }
+            nearby.put(plugin, now);
+            List<NPC.Personal> update = new ArrayList<>(now.size());
+            // NPCs whose cells left the player's range are updated one last time, so they get hidden.
+            for(NPC.Personal npc : last){
+                if(!now.contains(npc) && npc.isCreated()) update.add(npc);
+            }
+            for(NPC.Personal npc : now){
+                if(npc.isCreated()) update.add(npc);
+            }
+            if(update.isEmpty()) return;
+            synchronized (visibilityPass){
+                visibilityPass.compute(update, location, getPlayer().getEyeLocation());
+                for(int i = 0; i < update.size(); i++) update.get(i).updateMove(visibilityPass.isInRange(i), visibilityPass.isInView(i));
+            }
+        }
+
+        protected void updateSpatialIndex(NPC.Personal npc){
+            String world = npc.getWorld().getName();
+            PlayerManager.SpatialIndex last = spatialIndexed.get(npc);
+            if(last != null && !last.getWorldName().equals(world)) last.remove(npc);
+            PlayerManager.SpatialIndex index = spatialIndex.computeIfAbsent(world, x-> new PlayerManager.SpatialIndex(x, npcLib.getSpatialCellSize()));
+            index.update(npc);
+            spatialIndexed.put(npc, index);
+        }
+
+        protected void removeSpatialIndex(NPC.Personal npc){
+            PlayerManager.SpatialIndex index = spatialIndexed.remove(npc);
+            if(index != null) index.remove(npc);
+            nearby.values().forEach(x-> x.remove(npc));
+        }
+
+        protected void rebuildSpatialIndex(){
+            spatialIndex.clear();
+            spatialIndexed.clear();
+            npcs.values().forEach(x-> updateSpatialIndex(x));
         }
 
         protected void destroyWorld(World world){
-            Set<NPC.Personal> r = new HashSet<>();
+            Set<NPC.Personal> r = ConcurrentHashMap.newKeySet();
             npcs.values().stream().filter(x-> x.canSee() && x.getWorld().getName().equals(world.getName())).forEach(x->{
                 x.hide();
                 r.add(x);
@@ -679,15 +935,14 @@ public class NPCLib implements Listener {
         }
 
         protected void showWorld(World world){
-            if(!hidden.containsKey(world)) return;
-            hidden.get(world).stream().filter(x-> x.isCreated()).forEach(x-> x.show());
-            hidden.remove(world);
+            Set<NPC.Personal> r = hidden.remove(world);
+            if(r == null) return;
+            r.stream().filter(x-> x.isCreated()).forEach(x-> x.show());
         }
 
         protected void changeWorld(NPC.Personal npc, World from, World to){
-            if(!hidden.containsKey(from)) return;
-            if(!hidden.get(from).contains(npc)) return;
-            hidden.get(from).remove(npc);
+            Set<NPC.Personal> r = hidden.get(from);
+            if(r == null || !r.remove(npc)) return;
             npc.show();
         }
 
@@ -696,6 +951,10 @@ public class NPCLib implements Listener {
             destroy.addAll(npcs.values());
             destroy.stream().filter(x-> x.isCreated()).forEach(x-> x.destroy());
             npcs.clear();
+            spatialIndex.clear();
+            spatialIndexed.clear();
+            nearby.clear();
+            entityIDs.clear();
         }
 
         protected Set<NPC.Personal> getNPCs(World world){
@@ -713,7 +972,6 @@ public class NPCLib implements Listener {
         }
 
         protected NPC.Personal getNPC(String s){
-            if(!npcs.containsKey(s)) return null;
             return npcs.get(s);
         }
 
@@ -733,16 +991,180 @@ public class NPCLib implements Listener {
             return lastEnter;
         }
 
+        /**
+         * Checks the range and the view of a batch of NPCs of the same world at once. NPC positions and squared
+         * hide distances are copied into primitive arrays, so the loop does not allocate nor compare world names.
+         */
+        protected static class VisibilityPass {
+
+            private static final double VIEW_COS = Math.cos(Math.toRadians(60.0D));
+
+            private double[] x, y, z, hideDistanceSquared;
+            private boolean[] inRange, inView;
+
+            protected VisibilityPass(){
+                ensureCapacity(16);
+            }
+
+            private void ensureCapacity(int size){
+                if(x != null && x.length >= size) return;
+                int capacity = Math.max(size, x == null ? 16 : x.length * 2);
+                x = new double[capacity];
+                y = new double[capacity];
+                z = new double[capacity];
+                hideDistanceSquared = new double[capacity];
+                inRange = new boolean[capacity];
+                inView = new boolean[capacity];
+            }
+
+            protected void compute(List<NPC.Personal> npcs, Location location, Location eyeLocation){
+                int size = npcs.size();
+                ensureCapacity(size);
+                for(int i = 0; i < size; i++){
+                    NPC.Personal npc = npcs.get(i);
+                    x[i] = npc.getX();
+                    y[i] = npc.getY();
+                    z[i] = npc.getZ();
+                    double hideDistance = npc.getAttributes().hideDistance;
+                    // NPCs left behind in another world can never be in range.
+                    boolean sameWorld = npc.getWorld() == location.getWorld() || npc.getWorld().getName().equals(location.getWorld().getName());
+                    hideDistanceSquared[i] = sameWorld ? hideDistance * hideDistance : -1.0D;
+                }
+                final double px = location.getX(), py = location.getY(), pz = location.getZ();
+                final double ex = eyeLocation.getX(), ey = eyeLocation.getY(), ez = eyeLocation.getZ();
+                final org.bukkit.util.Vector direction = eyeLocation.getDirection();
+                final double dx = direction.getX(), dy = direction.getY(), dz = direction.getZ();
+                final double viewCosSquared = VIEW_COS * VIEW_COS;
+                for(int i = 0; i < size; i++){
+                    double ax = x[i] - px, ay = y[i] - py, az = z[i] - pz;
+                    inRange[i] = ax * ax + ay * ay + az * az < hideDistanceSquared[i];
+                    double vx = x[i] - ex, vy = y[i] - ey, vz = z[i] - ez;
+                    double dot = vx * dx + vy * dy + vz * dz;
+                    inView[i] = dot >= 0 & dot * dot >= viewCosSquared * (vx * vx + vy * vy + vz * vz);
+                }
+            }
+
+            protected boolean isInRange(int i) {
+                return inRange[i];
+            }
+
+            protected boolean isInView(int i) {
+                return inView[i];
+            }
+        }
+
+        /**
+         * Personal NPCs of one world, bucketed by cell. A player only needs to check the cells
+         * that overlap the biggest hide distance around him.
+         * <p>The main thread updates it while the gaze tracking task reads it asynchronously, so every access holds its monitor.</p>
+         */
+        protected static class SpatialIndex {
+
+            private final String worldName;
+            private final int cellSize;
+            private final Map<Long, Set<NPC.Personal>> cells;
+            private final Map<NPC.Personal, Long> cell;
+            private final Map<NPC.Personal, Double> hideDistance;
+            // Number of NPCs with each hide distance, so the biggest one can shrink when they are removed.
+            private final TreeMap<Double, Integer> hideDistances;
+            private double maxHideDistance;
+            private final AtomicInteger version;
+            private Set<NPC.Personal> lastNearby;
+            private long lastNearbyCell;
+            private int lastNearbyVersion;
+
+            protected SpatialIndex(String worldName, int cellSize){
+                this.worldName = worldName;
+                this.cellSize = cellSize;
+                this.cells = new HashMap<>();
+                this.cell = new HashMap<>();
+                this.hideDistance = new HashMap<>();
+                this.hideDistances = new TreeMap<>();
+                this.maxHideDistance = 0.0;
+                this.version = new AtomicInteger();
+                this.lastNearby = null;
+            }
+
+            protected synchronized void update(NPC.Personal npc){
+                updateHideDistance(npc, npc.getAttributes().hideDistance);
+                long key = getCell(npc.getX(), npc.getZ());
+                Long last = cell.put(npc, key);
+                if(last != null && last == key) return;
+                if(last != null) removeFromCell(last, npc);
+                cells.computeIfAbsent(key, x-> new HashSet<>()).add(npc);
+                version.incrementAndGet();
+            }
+
+            protected synchronized void remove(NPC.Personal npc){
+                updateHideDistance(npc, null);
+                Long last = cell.remove(npc);
+                if(last == null) return;
+                removeFromCell(last, npc);
+                version.incrementAndGet();
+            }
+
+            private synchronized void updateHideDistance(NPC.Personal npc, Double distance){
+                // NPC.Personal#show() sets a hide distance of 0 for a few ticks, it is not taken into account.
+                if(distance != null && distance <= 0.0) return;
+                Double last = distance != null ? hideDistance.put(npc, distance) : hideDistance.remove(npc);
+                if(Objects.equals(last, distance)) return;
+                if(last != null) hideDistances.computeIfPresent(last, (x, count)-> count > 1 ? count - 1 : null);
+                if(distance != null) hideDistances.merge(distance, 1, Integer::sum);
+                maxHideDistance = hideDistances.isEmpty() ? 0.0 : hideDistances.lastKey();
+                version.incrementAndGet();
+            }
+
+            private void removeFromCell(long key, NPC.Personal npc){
+                Set<NPC.Personal> set = cells.get(key);
+                if(set == null) return;
+                set.remove(npc);
+                if(set.isEmpty()) cells.remove(key);
+            }
+
+            protected synchronized Set<NPC.Personal> getNearby(double x, double z){
+                long center = getCell(x, z);
+                int currentVersion = version.get();
+                if(lastNearby != null && lastNearbyCell == center && lastNearbyVersion == currentVersion) return lastNearby;
+                int cellX = (int) (center >> 32);
+                int cellZ = (int) center;
+                int radius = (int) Math.ceil(maxHideDistance / cellSize);
+                // The result is a new set, so it can be iterated once the monitor is released.
+                Set<NPC.Personal> result = new HashSet<>();
+                for(int i = cellX - radius; i <= cellX + radius; i++){
+                    for(int j = cellZ - radius; j <= cellZ + radius; j++){
+                        Set<NPC.Personal> set = cells.get(getKey(i, j));
+                        if(set != null) result.addAll(set);
+                    }
+                }
+                this.lastNearby = result;
+                this.lastNearbyCell = center;
+                this.lastNearbyVersion = currentVersion;
+                return result;
+            }
+
+            private long getCell(double x, double z){
+                return getKey(Math.floorDiv((int) Math.floor(x), cellSize), Math.floorDiv((int) Math.floor(z), cellSize));
+            }
+
+            private static long getKey(int cellX, int cellZ){
+                return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+            }
+
+            protected String getWorldName() {
+                return worldName;
+            }
+        }
+
 
         protected static class PacketReader {
 
-            private HashMap<NPC, Long> lastClick;
+            private final Map<NPC, Long> lastClick;
             private PlayerManager npcPlayerManager;
             private Channel channel;
 
             protected PacketReader(PlayerManager npcPlayerManager){
                 this.npcPlayerManager = npcPlayerManager;
-                this.lastClick = new HashMap<>();
+                this.lastClick = new ConcurrentHashMap<>();
             }
 
             protected void inject() {
@@ -759,6 +1181,10 @@ public class NPCLib implements Listener {
                 });
             }
 
+            protected Channel getChannel() {
+                return channel;
+            }
+
             protected void unInject() {
                 if(channel == null) return;
                 if(channel.pipeline() == null) return;
@@ -768,13 +1194,12 @@ public class NPCLib implements Listener {
             }
 
             private void readPacket(Packet<?> packet) {
-                if(packet == null) return;
-                if (!packet.getClass().getSimpleName().equalsIgnoreCase("PacketPlayInUseEntity")) return;
-                int id = (int) NMSUtils.getValue(packet, "a");
+                if(!(packet instanceof PacketPlayInUseEntity useEntity)) return;
+                int id = NMSAccessors.getEntityID(useEntity);
+                if(!npcPlayerManager.isNPC(id)) return;
                 NPC.Interact.ClickType clickType;
                 try{
-                    Object action = NMSUtils.getValue(packet, "b");
-                    EnumHand hand = (EnumHand) NMSUtils.getValue(action, "a");
+                    EnumHand hand = NMSAccessors.getHand(useEntity);
                     if(hand != null) clickType = NPC.Interact.ClickType.RIGHT_CLICK;
                     else clickType = NPC.Interact.ClickType.LEFT_CLICK;
                 }
@@ -782,16 +1207,19 @@ public class NPCLib implements Listener {
                 interact(id, clickType);
             }
 
-            private void interact(Integer id, NPC.Interact.ClickType clickType){
-                NPC.Personal npc = getNPCLib().getNPCPlayerManager(getPlayerManager().getPlayer()).getNPC(id);
+            private void interact(int id, NPC.Interact.ClickType clickType){
+                NPC.Personal npc = npcPlayerManager.getNPC(id);
                 if(npc == null) return;
                 interact(npc, clickType);
             }
 
             private void interact(NPC.Personal npc, NPC.Interact.ClickType clickType){
                 if(npc == null) return;
-                if(lastClick.containsKey(npc) && System.currentTimeMillis() - lastClick.get(npc) < npc.getInteractCooldown()) return;
-                lastClick.put(npc, System.currentTimeMillis());
+                long now = System.currentTimeMillis();
+                Long last = lastClick.get(npc);
+                if(last != null && now - last < npc.getAttributes().interactCooldown) return;
+                // Only one of the clicks racing for the same cooldown window gets through.
+                if(last == null ? lastClick.putIfAbsent(npc, now) != null : !lastClick.replace(npc, last, now)) return;
                 Bukkit.getScheduler().scheduleSyncDelayedTask(npcPlayerManager.getNPCLib().getPlugin(), ()-> {
                     npc.interact(npcPlayerManager.getPlayer(), clickType);
                 }, 1);
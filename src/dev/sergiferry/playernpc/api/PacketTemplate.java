@@ -0,0 +1,76 @@
+package dev.sergiferry.playernpc.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.EnumProtocol;
+import net.minecraft.network.PacketDataSerializer;
+import net.minecraft.network.protocol.EnumProtocolDirection;
+import net.minecraft.network.protocol.Packet;
+
+import javax.annotation.Nonnull;
+import java.util.function.IntFunction;
+
+/**
+ * A packet of an entity whose first field is the entity id, encoded once so the same bytes can be written to every
+ * player that sees one of its copies. Only the packet id and the entity id are written for each player, the rest of the
+ * packet is a retained duplicate of the encoded body.
+ * <p>If the packet cannot be encoded, the packet object is created and sent for each player instead.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class PacketTemplate {
+
+    // The template is encoded with this entity id, which takes one byte as a VarInt.
+    private static final int TEMPLATE_ENTITY_ID = 0;
+    private static final int MAX_VAR_INT_BYTES = 5;
+
+    private final IntFunction<Packet<?>> factory;
+    private final int packetID;
+    private final ByteBuf body;
+
+    protected PacketTemplate(@Nonnull IntFunction<Packet<?>> factory){
+        this.factory = factory;
+        int packetID = -1;
+        ByteBuf body = null;
+        ByteBuf buffer = Unpooled.buffer();
+        try{
+            Packet<?> packet = factory.apply(TEMPLATE_ENTITY_ID);
+            Integer id = EnumProtocol.b.a(EnumProtocolDirection.b, packet); //b PLAY, b CLIENTBOUND, a getPacketId
+            if(id != null){
+                packet.a(new PacketDataSerializer(buffer)); //a write
+                if(buffer.readByte() == TEMPLATE_ENTITY_ID){
+                    // Wrapped arrays are not tracked by the leak detector, the template is only released by the GC.
+                    body = Unpooled.wrappedBuffer(ByteBufUtil.getBytes(buffer));
+                    packetID = id;
+                }
+            }
+        }
+        catch (Exception e){ NPCLib.printError(e); }
+        finally{ buffer.release(); }
+        this.packetID = packetID;
+        this.body = body;
+    }
+
+    protected boolean isEncoded(){
+        return body != null;
+    }
+
+    protected Packet<?> create(int entityID){
+        return factory.apply(entityID);
+    }
+
+    /**
+     * The packet of this entity id as the bytes the packet encoder would write, ready for the compression and length handlers.
+     * The returned buffer is released by the channel once written.
+     */
+    protected ByteBuf encode(int entityID){
+        ByteBuf header = Unpooled.buffer(MAX_VAR_INT_BYTES * 2);
+        PacketDataSerializer data = new PacketDataSerializer(header);
+        data.d(packetID); //d writeVarInt
+        data.d(entityID);
+        return Unpooled.wrappedBuffer(header, body.retainedDuplicate());
+    }
+
+}
@@ -0,0 +1,423 @@
+package dev.sergiferry.playernpc.api;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Skins of players are kept in one append-only data file, with an index file of where the last record of each skin is.
+ * Records are read from a memory mapped view of the data file. Skins saved again or deleted leave dead records behind,
+ * which are removed when the store is compacted.
+ * <p>The data file describes itself, so if the index file is lost or does not match, it is rebuilt from the data file.
+ * <p>Reads do not take the lock of the store. They use a snapshot of the index, the data file and its mapped view,
+ * which is replaced at once when the data file is remapped or compacted.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class SkinStore {
+
+    private static final int HEADER_BYTES = 8;
+    private static final byte RECORD_SKIN = 1;
+    private static final byte RECORD_REMOVED = 0;
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024L;
+    // Records appended after the data file was mapped are read from the channel, until there are this many bytes of them.
+    private static final long REMAP_MIN_BYTES = 1024 * 1024L;
+
+    private final File folder;
+    private final File dataFile;
+    private final File indexFile;
+    private final File migratedFile;
+    private volatile State state;
+    private volatile boolean open;
+    private FileChannel indexChannel;
+    private long generation;
+    private long liveBytes;
+    private boolean compactionFailed;
+
+    protected SkinStore(File folder){
+        this.folder = folder;
+        this.dataFile = new File(folder, "skins.dat");
+        this.indexFile = new File(folder, "skins.idx");
+        this.migratedFile = new File(folder, "skins.migrated");
+        this.state = new State(new ConcurrentHashMap<>(), null, null);
+    }
+
+    protected synchronized void open(){
+        if(open) return;
+        try{
+            folder.mkdirs();
+            FileChannel data = openChannels();
+            if(data.size() < HEADER_BYTES){
+                data.truncate(0);
+                writeHeader(data, System.currentTimeMillis());
+            }
+            generation = readHeader(data);
+            // The index is loaded apart, so readers keep seeing the previous one until it is complete.
+            Map<String, Entry> loading = new ConcurrentHashMap<>();
+            liveBytes = 0;
+            long indexed = HEADER_BYTES;
+            if(indexChannel.size() >= HEADER_BYTES && readHeader(indexChannel) == generation) indexed = readIndex(data, loading);
+            else{
+                indexChannel.truncate(0);
+                writeHeader(indexChannel, generation);
+            }
+            // Records written after the last index entry (or every record, if the index did not match) are indexed now.
+            scanData(data, loading, indexed);
+            // The data file is mapped on the first read, so a compaction right after opening can still replace it on Windows.
+            state = new State(loading, data, null);
+            // Skin folders of older versions are migrated only once.
+            if(!migratedFile.exists()) migrateFolders();
+        }
+        catch (IOException e){ NPCLib.printError(e); }
+        // Readers that found the store closed wait for the lock, so they see it loaded.
+        finally{ open = true; }
+    }
+
+    private FileChannel openChannels() throws IOException {
+        indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Mapped views are not unmapped, readers may still be using them. They are released by the GC.
+    private void closeChannels(FileChannel data) throws IOException {
+        data.close();
+        indexChannel.close();
+    }
+
+    private void ensureOpen(){
+        if(!open) open();
+    }
+
+    protected NPC.Skin get(String name){
+        ensureOpen();
+        State state = this.state;
+        for(int attempt = 0; ; attempt++){
+            Entry entry = state.index().get(name);
+            if(entry == null || state.data() == null) return null;
+            try{ return decode(read(state, entry)); }
+            catch (IOException e){
+                // A compaction closes the data file while it holds the lock, once it is done the skin is read from the new one.
+                State current = getLockedState();
+                if(attempt == 0 && current != state){
+                    state = current;
+                    continue;
+                }
+                NPCLib.printError(e);
+                return null;
+            }
+        }
+    }
+
+    private byte[] read(State state, Entry entry) throws IOException {
+        long end = entry.offset() + entry.length();
+        MappedByteBuffer mapped = state.mapped();
+        if(mapped == null || (end > mapped.capacity() && state.data().size() - mapped.capacity() >= REMAP_MIN_BYTES)) mapped = remap(state);
+        byte[] record = new byte[entry.length() - 4];
+        // Absolute gets do not move the position of the buffer, so readers can share it.
+        if(mapped != null && end <= mapped.capacity()) mapped.get((int) entry.offset() + 4, record);
+        else readFully(state.data(), ByteBuffer.wrap(record), entry.offset() + 4);
+        return record;
+    }
+
+    private synchronized State getLockedState(){
+        return state;
+    }
+
+    private synchronized MappedByteBuffer remap(State state) throws IOException {
+        // Another reader may have remapped it already. If a compaction replaced the data file, the old one is read from its channel.
+        if(this.state != state) return this.state.data() == state.data() ? this.state.mapped() : null;
+        MappedByteBuffer mapped = state.data().map(FileChannel.MapMode.READ_ONLY, 0, state.data().size());
+        this.state = new State(state.index(), state.data(), mapped);
+        return mapped;
+    }
+
+    private void readFully(FileChannel data, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = data.read(buffer, position + buffer.position());
+            if(read < 0) throw new IOException("Unexpected end of " + dataFile.getName());
+        }
+    }
+
+    protected synchronized void put(String name, NPC.Skin skin) throws IOException {
+        ensureOpen();
+        append(name, encode(name, skin));
+        compactIfNeeded();
+    }
+
+    protected synchronized void remove(String name){
+        ensureOpen();
+        if(!state.index().containsKey(name)) return;
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_REMOVED);
+            out.writeUTF(name);
+            append(name, bytes.toByteArray());
+        }
+        catch (IOException e){ NPCLib.printError(e); }
+    }
+
+    public boolean contains(@Nonnull String name){
+        return state.index().containsKey(name.toLowerCase());
+    }
+
+    public Set<String> getNames(){
+        return Collections.unmodifiableSet(state.index().keySet());
+    }
+
+    public int getSize(){
+        return state.index().size();
+    }
+
+    public synchronized long getLiveBytes(){
+        return liveBytes;
+    }
+
+    public synchronized long getDeadBytes(){
+        FileChannel data = state.data();
+        try{ return data == null || !data.isOpen() ? 0 : data.size() - HEADER_BYTES - liveBytes; }
+        catch (IOException e){ return 0; }
+    }
+
+    private boolean shouldCompact(){
+        long dead = getDeadBytes();
+        return dead > COMPACT_MIN_DEAD_BYTES && dead > liveBytes;
+    }
+
+    /**
+     * Compacts the store if dead records take more than the live ones. After a failed compaction,
+     * it is not tried again automatically until the server restarts.
+     */
+    protected synchronized void compactIfNeeded(){
+        if(!compactionFailed && shouldCompact()) compact();
+    }
+
+    /**
+     * Rewrites the data and index files with only the last record of each skin.
+     * <p>On Windows, the data file cannot be replaced while a mapped view of it is alive, so the compaction may fail
+     * if skins were read since the store was opened. It is done on the next start, before any skin is read.
+     */
+    public synchronized void compact(){
+        ensureOpen();
+        State state = this.state;
+        if(state.data() == null) return;
+        File compactData = new File(folder, dataFile.getName() + ".compact");
+        File compactIndex = new File(folder, indexFile.getName() + ".compact");
+        long newGeneration = generation + 1;
+        Map<String, Entry> compacted = new ConcurrentHashMap<>();
+        try(FileChannel newData = FileChannel.open(compactData.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            FileChannel newIndex = FileChannel.open(compactIndex.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            writeHeader(newData, newGeneration);
+            writeHeader(newIndex, newGeneration);
+            long offset = HEADER_BYTES;
+            for(Map.Entry<String, Entry> entry : state.index().entrySet()){
+                ByteBuffer record = ByteBuffer.allocate(entry.getValue().length());
+                readFully(state.data(), record, entry.getValue().offset());
+                record.flip();
+                newData.write(record, offset);
+                Entry moved = new Entry(offset, entry.getValue().length());
+                writeIndexEntry(newIndex, entry.getKey(), moved);
+                compacted.put(entry.getKey(), moved);
+                offset += moved.length();
+            }
+            newData.force(true);
+            newIndex.force(true);
+        }
+        catch (IOException e){
+            NPCLib.printError(e);
+            compactionFailed = true;
+            compactData.delete();
+            compactIndex.delete();
+            return;
+        }
+        boolean dataMoved = false;
+        try{
+            closeChannels(state.data());
+            // The data file is moved first. If the index is not moved, it is written again from the compacted entries.
+            Files.move(compactData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dataMoved = true;
+            Files.move(compactIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e){
+            NPCLib.printError(e);
+            compactionFailed = true;
+        }
+        compactData.delete();
+        compactIndex.delete();
+        try{
+            FileChannel data = openChannels();
+            if(dataMoved){
+                // The offsets of the records changed, the compacted index replaces the old one at once.
+                generation = newGeneration;
+                this.state = new State(compacted, data, null);
+                if(indexChannel.size() < HEADER_BYTES || readHeader(indexChannel) != generation) writeIndex();
+            }
+            else this.state = new State(state.index(), data, null);
+        }
+        catch (IOException e){
+            NPCLib.printError(e);
+            // The store is loaded again from the files on the next access.
+            open = false;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        indexChannel.truncate(0);
+        writeHeader(indexChannel, generation);
+        for(Map.Entry<String, Entry> entry : state.index().entrySet()) writeIndexEntry(indexChannel, entry.getKey(), entry.getValue());
+    }
+
+    private void append(String name, byte[] payload) throws IOException {
+        State state = this.state;
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.length);
+        record.putInt(payload.length).put(payload).flip();
+        long offset = state.data().size();
+        state.data().write(record, offset);
+        Entry entry = new Entry(offset, 4 + payload.length);
+        boolean removed = payload[0] == RECORD_REMOVED;
+        writeIndexEntry(indexChannel, name, removed ? new Entry(offset, -entry.length()) : entry);
+        // The record is written before it is indexed, so readers never find an entry of a record that is not there.
+        putEntry(state.index(), name, removed ? null : entry);
+    }
+
+    private void putEntry(Map<String, Entry> index, String name, Entry entry){
+        Entry old = entry == null ? index.remove(name) : index.put(name, entry);
+        if(old != null) liveBytes -= old.length();
+        if(entry != null) liveBytes += entry.length();
+    }
+
+    // Returns where the records not yet indexed start.
+    private long readIndex(FileChannel data, Map<String, Entry> index) throws IOException {
+        long size = indexChannel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size - HEADER_BYTES));
+        indexChannel.read(buffer, HEADER_BYTES);
+        buffer.flip();
+        long dataSize = data.size();
+        long indexed = HEADER_BYTES;
+        int valid = 0;
+        while(buffer.remaining() >= 2){
+            int nameLength = buffer.getShort() & 0xFFFF;
+            if(buffer.remaining() < nameLength + 12) break;
+            byte[] name = new byte[nameLength];
+            buffer.get(name);
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            long end = offset + Math.abs(length);
+            if(end > dataSize) break;
+            putEntry(index, new String(name, StandardCharsets.UTF_8), length < 0 ? null : new Entry(offset, length));
+            indexed = Math.max(indexed, end);
+            valid = buffer.position();
+        }
+        // An entry cut by a crash is dropped, the record is indexed again from the data file.
+        if(HEADER_BYTES + valid < size) indexChannel.truncate(HEADER_BYTES + valid);
+        return indexed;
+    }
+
+    private void scanData(FileChannel data, Map<String, Entry> index, long from) throws IOException {
+        long size = data.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long position = from;
+        while(position + 4 <= size){
+            length.clear();
+            data.read(length, position);
+            int payloadLength = length.flip().getInt();
+            if(payloadLength <= 0 || position + 4 + payloadLength > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            data.read(payload, position + 4);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+            boolean removed = in.readByte() == RECORD_REMOVED;
+            String name = in.readUTF();
+            Entry entry = new Entry(position, 4 + payloadLength);
+            writeIndexEntry(indexChannel, name, removed ? new Entry(position, -entry.length()) : entry);
+            putEntry(index, name, removed ? null : entry);
+            position += entry.length();
+        }
+        // A record cut by a crash is dropped.
+        if(position < size) data.truncate(position);
+    }
+
+    private void migrateFolders() throws IOException {
+        File[] folders = folder.listFiles(File::isDirectory);
+        boolean migrated = true;
+        if(folders != null){
+            for(File skinFolder : folders){
+                File file = new File(skinFolder, "data.yml");
+                if(!file.exists()) continue;
+                try{
+                    NPC.Skin skin = NPC.Skin.readLegacy(file);
+                    String name = skinFolder.getName().toLowerCase();
+                    append(name, encode(name, skin));
+                }
+                catch (Exception e){
+                    NPCLib.printError(e);
+                    migrated = false;
+                    continue;
+                }
+                // The skin is in the store now. Its avatar and texture images are downloaded again if they are needed.
+                try{ FileUtils.deleteDirectory(skinFolder); }
+                catch (IOException e){
+                    NPCLib.printError(e);
+                    file.renameTo(new File(skinFolder, "data.yml.migrated"));
+                }
+            }
+        }
+        // Folders that failed are tried again on the next start.
+        if(migrated) migratedFile.createNewFile();
+    }
+
+    private static byte[] encode(String name, NPC.Skin skin) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_SKIN);
+        out.writeUTF(name);
+        skin.write(out);
+        return bytes.toByteArray();
+    }
+
+    private static NPC.Skin decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if(in.readByte() != RECORD_SKIN) return null;
+        in.readUTF();
+        return NPC.Skin.read(in);
+    }
+
+    private static void writeHeader(FileChannel channel, long generation) throws IOException {
+        channel.write(ByteBuffer.allocate(HEADER_BYTES).putLong(generation).flip(), 0);
+    }
+
+    private static long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(header, 0);
+        return header.flip().getLong();
+    }
+
+    private static void writeIndexEntry(FileChannel channel, String name, Entry entry) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + nameBytes.length + 12);
+        buffer.putShort((short) nameBytes.length).put(nameBytes).putLong(entry.offset()).putInt(entry.length()).flip();
+        channel.write(buffer, channel.size());
+    }
+
+    private record Entry(long offset, int length){}
+
+    // The index is only changed under the lock, after the record it points to has been written.
+    private record State(Map<String, Entry> index, FileChannel data, MappedByteBuffer mapped){}
+}
@@ -0,0 +1,168 @@
+package dev.sergiferry.playernpc.nms;
+
+import dev.sergiferry.playernpc.nms.craftbukkit.NMSCraftItemStack;
+import dev.sergiferry.playernpc.nms.craftbukkit.NMSCraftScoreboard;
+import dev.sergiferry.spigot.nms.NMSUtils;
+import com.google.common.collect.ImmutableList;
+import dev.sergiferry.spigot.nms.craftbukkit.NMSCraftWorld;
+import net.minecraft.network.protocol.game.PacketPlayInUseEntity;
+import net.minecraft.server.level.WorldServer;
+import net.minecraft.world.EnumHand;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.scores.Scoreboard;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Reflective NMS members used on hot paths, resolved once into MethodHandles and VarHandles.
+ * If a member cannot be resolved, the accessor falls back to plain reflection and a warning is logged once.
+ *
+ * @since 2022.2
+ * @author  SergiFerry
+ */
+public class NMSAccessors {
+
+    private static final VarHandle USE_ENTITY_ID;
+    private static final VarHandle USE_ENTITY_ACTION;
+    private static final MethodHandle CRAFT_SCOREBOARD_GET_HANDLE;
+    private static final MethodHandle CRAFT_WORLD_GET_HANDLE;
+    private static final MethodHandle CRAFT_ITEM_STACK_AS_NMS_COPY;
+    private static final VarHandle ENTITY_PASSENGERS;
+    private static final Set<String> WARNED = ConcurrentHashMap.newKeySet();
+
+    // Every action of PacketPlayInUseEntity is a different class, only the interact ones have the hand field.
+    private static final ClassValue<VarHandle> ACTION_HAND = new ClassValue<>() {
+        @Override
+        protected VarHandle computeValue(Class<?> type) {
+            // The attack action has no hand, so it is expected not to be found.
+            return findVarHandle(type, "a", false);
+        }
+    };
+
+    static {
+        USE_ENTITY_ID = findVarHandle(PacketPlayInUseEntity.class, "a", true);
+        USE_ENTITY_ACTION = findVarHandle(PacketPlayInUseEntity.class, "b", true);
+        CRAFT_SCOREBOARD_GET_HANDLE = unreflect(NMSCraftScoreboard.getCraftScoreBoardGetHandle(), "CraftScoreboard#getHandle");
+        CRAFT_WORLD_GET_HANDLE = unreflect(NMSCraftWorld.getCraftWorldGetHandle(), "CraftWorld#getHandle");
+        CRAFT_ITEM_STACK_AS_NMS_COPY = unreflect(NMSCraftItemStack.getCraftItemStackAsNMSCopy(), "CraftItemStack#asNMSCopy");
+        // The passengers are the only ImmutableList of Entity, it is found by type as its obfuscated name changes between versions.
+        ENTITY_PASSENGERS = findVarHandle(Entity.class, ImmutableList.class, "Entity#passengers");
+    }
+
+    private static VarHandle findVarHandle(Class<?> type, String name, boolean warn){
+        try{
+            Field field = type.getDeclaredField(name);
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup()).unreflectVarHandle(field);
+        }
+        catch (ReflectiveOperationException e){
+            if(warn) warn(type.getSimpleName() + "#" + name, e);
+            return null;
+        }
+    }
+
+    private static VarHandle findVarHandle(Class<?> type, Class<?> fieldType, String name){
+        try{
+            for(Field field : type.getDeclaredFields()){
+                if(field.getType() == fieldType) return MethodHandles.privateLookupIn(type, MethodHandles.lookup()).unreflectVarHandle(field);
+            }
+            warn(name, null);
+        }
+        catch (ReflectiveOperationException e){ warn(name, e); }
+        return null;
+    }
+
+    private static MethodHandle unreflect(Method method, String name){
+        if(method == null){
+            warn(name, null);
+            return null;
+        }
+        try{ return MethodHandles.lookup().unreflect(method); }
+        catch (ReflectiveOperationException e){
+            warn(name, e);
+            return null;
+        }
+    }
+
+    private static void warn(String name, Throwable cause){
+        if(!WARNED.add(name)) return;
+        Bukkit.getLogger().log(Level.WARNING, "[PlayerNPC] Could not resolve " + name + ", falling back to slower reflection. The NMS mappings of this server version may have changed.", cause);
+    }
+
+    // The handles only wrap getters that declare no checked exceptions, invoke only makes the compiler ask for Throwable.
+    private static Object invoke(MethodHandle handle, Object argument){
+        try{ return handle.invoke(argument); }
+        catch (RuntimeException | Error e){ throw e; }
+        catch (Throwable e){ throw new IllegalStateException(e); }
+    }
+
+    public static int getEntityID(PacketPlayInUseEntity packet){
+        if(USE_ENTITY_ID != null) return (int) USE_ENTITY_ID.get(packet);
+        return (int) NMSUtils.getValue(packet, "a");
+    }
+
+    /**
+     * @return the hand of the interaction, or null if the player attacked the entity.
+     */
+    public static EnumHand getHand(PacketPlayInUseEntity packet){
+        Object action = USE_ENTITY_ACTION != null ? USE_ENTITY_ACTION.get(packet) : NMSUtils.getValue(packet, "b");
+        if(action == null) return null;
+        VarHandle hand = ACTION_HAND.get(action.getClass());
+        if(hand == null) return null;
+        Object value = hand.get(action);
+        return value instanceof EnumHand ? (EnumHand) value : null;
+    }
+
+    public static Scoreboard getScoreboard(org.bukkit.scoreboard.Scoreboard scoreboard){
+        if(CRAFT_SCOREBOARD_GET_HANDLE != null) return (Scoreboard) invoke(CRAFT_SCOREBOARD_GET_HANDLE, scoreboard);
+        try{ return (Scoreboard) NMSCraftScoreboard.getCraftScoreBoardGetHandle().invoke(NMSCraftScoreboard.getCraftScoreBoardClass().cast(scoreboard)); }
+        catch (ReflectiveOperationException e){
+            warn("CraftScoreboard#getHandle invocation", e);
+            return null;
+        }
+    }
+
+    public static WorldServer getWorldServer(World world){
+        if(CRAFT_WORLD_GET_HANDLE != null) return (WorldServer) invoke(CRAFT_WORLD_GET_HANDLE, world);
+        try{ return (WorldServer) NMSCraftWorld.getCraftWorldGetHandle().invoke(NMSCraftWorld.getCraftWorldClass().cast(world)); }
+        catch (ReflectiveOperationException e){
+            warn("CraftWorld#getHandle invocation", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the passengers of an entity that is not in a world, only to build a PacketPlayOutMount from it.
+     * Unlike riding, it does not call Bukkit events nor change the vehicle of the passengers.
+     *
+     * @return false if the passengers field could not be resolved, there is no reflection fallback for it.
+     */
+    public static boolean setPassengers(Entity entity, List<? extends Entity> passengers){
+        if(ENTITY_PASSENGERS == null) return false;
+        ENTITY_PASSENGERS.set(entity, ImmutableList.copyOf(passengers));
+        return true;
+    }
+
+    public static boolean canSetPassengers(){
+        return ENTITY_PASSENGERS != null;
+    }
+
+    public static net.minecraft.world.item.ItemStack asNMSCopy(org.bukkit.inventory.ItemStack itemStack){
+        if(CRAFT_ITEM_STACK_AS_NMS_COPY != null) return (net.minecraft.world.item.ItemStack) invoke(CRAFT_ITEM_STACK_AS_NMS_COPY, itemStack);
+        try{ return (net.minecraft.world.item.ItemStack) NMSCraftItemStack.getCraftItemStackAsNMSCopy().invoke(null, itemStack); }
+        catch (ReflectiveOperationException e){
+            warn("CraftItemStack#asNMSCopy invocation", e);
+            return null;
+        }
+    }
+
+}
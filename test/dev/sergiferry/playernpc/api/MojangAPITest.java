@@ -0,0 +1,137 @@
+package dev.sergiferry.playernpc.api;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * NPC.Skin.MojangAPI against a local stand-in of the Mojang session server.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class MojangAPITest {
+
+    private static final String UUID = "069a79f444e94726a5befca90e38aaf5";
+    private static final String PROFILE = "{\"id\":\"" + UUID + "\",\"name\":\"Notch\",\"properties\":[]}";
+
+    private HttpServer server;
+    private AtomicInteger requests;
+    private NPC.Skin.MojangAPI.RateLimiter rateLimiter;
+    private String bulkProfilesURL;
+    private String profilesURL;
+    private String sessionURL;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        requests = new AtomicInteger();
+        rateLimiter = NPC.Skin.MojangAPI.getRateLimiter();
+        bulkProfilesURL = NPC.Skin.MojangAPI.getBulkProfilesURL();
+        profilesURL = NPC.Skin.MojangAPI.getProfilesURL();
+        sessionURL = NPC.Skin.MojangAPI.getSessionURL();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        NPC.Skin.MojangAPI.setBaseURLs(base + "/profiles/minecraft", base + "/users/profiles/minecraft/", base + "/session/minecraft/profile/");
+        // Tests that are not about the rate limit must not wait for it.
+        NPC.Skin.MojangAPI.setRateLimiter(new NPC.Skin.MojangAPI.RateLimiter(1000, Duration.ofSeconds(1), 1000));
+    }
+
+    @AfterEach
+    public void tearDown(){
+        server.stop(0);
+        NPC.Skin.MojangAPI.setRateLimiter(rateLimiter);
+        NPC.Skin.MojangAPI.setBaseURLs(bulkProfilesURL, profilesURL, sessionURL);
+    }
+
+    /**
+     * The session server answers each request with the next status, repeating the last one.
+     */
+    private void respond(int... statuses){
+        server.createContext("/session/minecraft/profile/", exchange -> {
+            int request = requests.getAndIncrement();
+            int status = statuses[Math.min(request, statuses.length - 1)];
+            byte[] body = (status == 200 ? PROFILE : "{}").getBytes(StandardCharsets.UTF_8);
+            if(status == 429) exchange.getResponseHeaders().add("Retry-After", "0");
+            exchange.sendResponseHeaders(status, body.length);
+            try(OutputStream out = exchange.getResponseBody()){ out.write(body); }
+        });
+    }
+
+    @Test
+    public void retriesAfterTooManyRequests() throws IOException {
+        respond(429, 429, 200);
+        JsonObject profile = NPC.Skin.MojangAPI.getProfile(UUID);
+        assertEquals("Notch", profile.get("name").getAsString());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts(){
+        respond(429);
+        assertThrows(IOException.class, () -> NPC.Skin.MojangAPI.getProfile(UUID));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void doesNotRetryNotFound(){
+        respond(404);
+        assertThrows(IOException.class, () -> NPC.Skin.MojangAPI.getProfile(UUID));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void waitsForTheRateLimit() throws IOException {
+        respond(200);
+        // 2 requests every 400 ms and an empty bucket, so every request waits 200 ms for its token.
+        AtomicLong ticker = new AtomicLong();
+        List<Long> waits = new ArrayList<>();
+        NPC.Skin.MojangAPI.setRateLimiter(new NPC.Skin.MojangAPI.RateLimiter(2, Duration.ofMillis(400), 0, ticker::get){
+            @Override
+            protected void sleep(long nanos){
+                waits.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+                ticker.addAndGet(nanos);
+            }
+        });
+        for(int i = 0; i < 3; i++) NPC.Skin.MojangAPI.getProfile(UUID);
+        assertEquals(3, requests.get());
+        assertEquals(List.of(200L, 200L, 200L), waits);
+    }
+
+    @Test
+    public void rateLimiterStartsPartiallyFilled(){
+        NPC.Skin.MojangAPI.RateLimiter limiter = new NPC.Skin.MojangAPI.RateLimiter(600, Duration.ofMinutes(10), 100, () -> 0L);
+        assertEquals(100, limiter.getAvailable());
+        for(int i = 0; i < 100; i++) assertEquals(0L, limiter.acquire());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.acquire());
+    }
+
+    @Test
+    public void rateLimiterRefillsUpToTheCapacity(){
+        AtomicLong ticker = new AtomicLong();
+        NPC.Skin.MojangAPI.RateLimiter limiter = new NPC.Skin.MojangAPI.RateLimiter(2, Duration.ofMillis(400), 0, ticker::get);
+        ticker.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, limiter.getAvailable());
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(2, limiter.getAvailable());
+        assertEquals(0L, limiter.acquire());
+        assertEquals(0L, limiter.acquire());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.acquire());
+    }
+
+}
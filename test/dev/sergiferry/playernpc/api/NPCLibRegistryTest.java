@@ -0,0 +1,150 @@
+package dev.sergiferry.playernpc.api;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers the player and NPC registries of NPCLib and NPCLib.PlayerManager from several threads.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class NPCLibRegistryTest {
+
+    private static final int THREADS = 8;
+    private static final int PLAYERS = 200;
+    private static final int NPCS_PER_THREAD = 500;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private NPCLib npcLib;
+    private World world;
+    private ExecutorService executor;
+
+    @BeforeAll
+    public static void setUpServer() throws ReflectiveOperationException {
+        Stubs.setUpServer();
+    }
+
+    @BeforeEach
+    public void setUp() throws ReflectiveOperationException {
+        npcLib = Stubs.npcLib();
+        world = Stubs.world("world");
+        executor = Executors.newFixedThreadPool(THREADS + 2);
+    }
+
+    @Test
+    public void createsOnePlayerManagerPerPlayer() throws Exception {
+        List<Player> players = new ArrayList<>();
+        for(int i = 0; i < PLAYERS; i++) players.add(Stubs.player("Player" + i));
+        Map<Player, Set<NPCLib.PlayerManager>> seen = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            tasks.add(() -> {
+                start.await();
+                for(Player player : players){
+                    seen.computeIfAbsent(player, x-> ConcurrentHashMap.newKeySet()).add(npcLib.getNPCPlayerManager(player));
+                }
+                return null;
+            });
+        }
+        run(tasks, start);
+        for(Player player : players){
+            assertEquals(1, seen.get(player).size(), "More than one manager was created for " + player.getName());
+            assertSame(seen.get(player).iterator().next(), npcLib.getNPCPlayerManager(player));
+        }
+    }
+
+    @Test
+    public void registersAndUnregistersPersonalNPCs() throws Exception {
+        NPCLib.PlayerManager playerManager = npcLib.getNPCPlayerManager(Stubs.player("Player"));
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch writers = new CountDownLatch(THREADS);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            int thread = t;
+            tasks.add(() -> {
+                start.await();
+                try{
+                    for(int i = 0; i < NPCS_PER_THREAD; i++){
+                        int id = thread * NPCS_PER_THREAD + i;
+                        String code = "test." + id;
+                        NPC.Personal npc = npc(id);
+                        playerManager.set(code, npc);
+                        playerManager.setEntityID(id, npc);
+                        if(playerManager.getNPC(code) != npc) failures.add("Lost " + code);
+                        if(playerManager.getNPC(id) != npc) failures.add("Lost entity id " + id);
+                        // Odd NPCs are removed again, so registering and unregistering are interleaved.
+                        if(i % 2 == 0) continue;
+                        playerManager.removeNPC(code);
+                        playerManager.removeEntityID(id);
+                        if(playerManager.getNPC(code) != null) failures.add("Kept " + code);
+                        if(playerManager.isNPC(id)) failures.add("Kept entity id " + id);
+                    }
+                }
+                finally{ writers.countDown(); }
+                return null;
+            });
+        }
+        // Readers iterate and look up while the writers change the registries, as the gaze timer and netty threads do.
+        for(int t = 0; t < 2; t++){
+            tasks.add(() -> {
+                start.await();
+                Random random = new Random();
+                while(writers.getCount() > 0){
+                    playerManager.getNPCs().forEach(x-> x.getWorld());
+                    playerManager.getNPCs(world);
+                    int id = random.nextInt(THREADS * NPCS_PER_THREAD);
+                    NPC.Personal npc = playerManager.getNPC(id);
+                    if(npc != null && npc.getX() != id) failures.add("Entity id " + id + " points to another NPC");
+                    playerManager.getNPC("test." + id);
+                }
+                return null;
+            });
+        }
+        run(tasks, start);
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failures, first: " + failures.peek());
+        Set<NPC.Personal> npcs = playerManager.getNPCs();
+        assertEquals(THREADS * NPCS_PER_THREAD / 2, npcs.size());
+        assertEquals(npcs, playerManager.getNPCs(world));
+        for(int id = 0; id < THREADS * NPCS_PER_THREAD; id++){
+            boolean kept = id % NPCS_PER_THREAD % 2 == 0;
+            assertEquals(kept, playerManager.isNPC(id));
+            assertEquals(kept, playerManager.getNPC("test." + id) != null);
+        }
+    }
+
+    private void run(List<Callable<Void>> tasks, CountDownLatch start) throws Exception {
+        List<Future<Void>> futures = new ArrayList<>();
+        for(Callable<Void> task : tasks) futures.add(executor.submit(task));
+        start.countDown();
+        try{
+            // Rethrows any ConcurrentModificationException or assertion of the tasks.
+            for(Future<Void> future : futures) future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        finally{ executor.shutdownNow(); }
+    }
+
+    private NPC.Personal npc(int id) throws ReflectiveOperationException {
+        NPC.Personal npc = Stubs.allocate(NPC.Personal.class);
+        NPC.Attributes attributes = new NPC.Attributes();
+        attributes.setHideDistance(50.0);
+        Stubs.set(npc, NPC.class, "attributes", attributes);
+        Stubs.set(npc, NPC.class, "world", world);
+        // The x coordinate is the entity id, so lookups can check they got the right NPC.
+        Stubs.set(npc, NPC.class, "x", (double) id);
+        Stubs.set(npc, NPC.class, "y", 0.0);
+        Stubs.set(npc, NPC.class, "z", (double) (id % 64));
+        return npc;
+    }
+
+}
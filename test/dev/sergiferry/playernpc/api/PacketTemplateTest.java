@@ -0,0 +1,71 @@
+package dev.sergiferry.playernpc.api;
+
+import com.mojang.datafixers.util.Pair;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.EnumProtocol;
+import net.minecraft.network.PacketDataSerializer;
+import net.minecraft.network.protocol.EnumProtocolDirection;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.PacketPlayOutEntityEquipment;
+import net.minecraft.world.entity.EnumItemSlot;
+import net.minecraft.world.item.ItemStack;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A PacketTemplate must write the same bytes as the packet encoder would for the packet of each entity id.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class PacketTemplateTest {
+
+    @BeforeAll
+    public static void setUpServer() throws ReflectiveOperationException {
+        Stubs.setUpServer();
+    }
+
+    @Test
+    public void writesTheEncodedPacketOfEachEntityID(){
+        List<Pair<EnumItemSlot, ItemStack>> equipment = new ArrayList<>();
+        for(EnumItemSlot slot : EnumItemSlot.values()) equipment.add(new Pair<>(slot, ItemStack.b)); //b EMPTY
+        PacketTemplate template = new PacketTemplate(entityID -> new PacketPlayOutEntityEquipment(entityID, equipment));
+        assertTrue(template.isEncoded());
+        // One and several bytes long VarInts, the template is encoded with the entity id 0.
+        for(int entityID : new int[]{0, 1, 127, 128, 300, Integer.MAX_VALUE}){
+            ByteBuf encoded = template.encode(entityID);
+            assertArrayEquals(encode(template.create(entityID)), ByteBufUtil.getBytes(encoded), "Entity id " + entityID);
+            encoded.release();
+        }
+    }
+
+    @Test
+    public void keepsTheBodyAfterTheSentCopiesAreReleased(){
+        PacketTemplate template = new PacketTemplate(entityID -> new PacketPlayOutEntityEquipment(entityID, List.of(new Pair<>(EnumItemSlot.a, ItemStack.b)))); //a MAINHAND
+        byte[] expected = encode(template.create(42));
+        for(int i = 0; i < 3; i++){
+            ByteBuf encoded = template.encode(42);
+            assertArrayEquals(expected, ByteBufUtil.getBytes(encoded));
+            encoded.release();
+        }
+    }
+
+    private static byte[] encode(Packet<?> packet){
+        ByteBuf buffer = Unpooled.buffer();
+        try{
+            PacketDataSerializer data = new PacketDataSerializer(buffer);
+            data.d(EnumProtocol.b.a(EnumProtocolDirection.b, packet));
+            packet.a(data);
+            return ByteBufUtil.getBytes(buffer);
+        }
+        finally{ buffer.release(); }
+    }
+
+}
@@ -0,0 +1,59 @@
+package dev.sergiferry.playernpc.api;
+
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * NPC.Placeholders cache values by scope, the personal NPCs of a Global NPC share them unless they depend on the player.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+public class PlaceholdersTest {
+
+    @BeforeAll
+    public static void setUpServer() throws ReflectiveOperationException {
+        Stubs.setUpServer();
+    }
+
+    @Test
+    public void tabListNameIsCachedPerViewer() throws ReflectiveOperationException {
+        NPC.Global global = Stubs.allocate(NPC.Global.class);
+        Player first = Stubs.player("First");
+        Player second = Stubs.player("Second");
+        // Each viewer has a custom tab list name, set with Global#setCustomTabListName(Player, String).
+        NPC.Personal firstNPC = personal(global, first, "§aFirst");
+        NPC.Personal secondNPC = personal(global, second, "§bSecond");
+        assertEquals("§aFirst", NPC.Placeholders.replace(firstNPC, first, "{npcTabListName}"));
+        assertEquals("§bSecond", NPC.Placeholders.replace(secondNPC, second, "{npcTabListName}"));
+        assertEquals("§aFirst", NPC.Placeholders.replace(firstNPC, first, "{npcTabListName}"));
+    }
+
+    @Test
+    public void npcCodeIsSharedByViewers() throws ReflectiveOperationException {
+        NPC.Global global = Stubs.allocate(NPC.Global.class);
+        Stubs.set(global, NPC.class, "code", "test.shared");
+        Player first = Stubs.player("First");
+        Player second = Stubs.player("Second");
+        NPC.Personal firstNPC = personal(global, first, "§aFirst");
+        NPC.Personal secondNPC = personal(global, second, "§bSecond");
+        // The personal NPCs have no code, the value computed for the first viewer is cached by the Global NPC.
+        Stubs.set(firstNPC, NPC.class, "code", "test.shared");
+        assertEquals("test.shared", NPC.Placeholders.replace(firstNPC, first, "{npcCode}"));
+        assertEquals("test.shared", NPC.Placeholders.replace(secondNPC, second, "{npcCode}"));
+    }
+
+    private static NPC.Personal personal(NPC.Global global, Player player, String customTabListName) throws ReflectiveOperationException {
+        NPC.Personal npc = Stubs.allocate(NPC.Personal.class);
+        NPC.Attributes attributes = new NPC.Attributes();
+        attributes.setCustomTabListName(customTabListName);
+        Stubs.set(npc, NPC.class, "attributes", attributes);
+        Stubs.set(npc, NPC.Personal.class, "player", player);
+        Stubs.set(npc, NPC.Personal.class, "global", global);
+        return npc;
+    }
+
+}
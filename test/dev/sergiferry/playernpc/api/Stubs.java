@@ -0,0 +1,95 @@
+package dev.sergiferry.playernpc.api;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.server.DispenserRegistry;
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * There is no server in tests, so Bukkit interfaces are proxies and NPCLib and NPC instances are allocated without
+ * their constructors, with only the fields a test reads.
+ *
+ * @since 2022.3
+ * @author  SergiFerry
+ */
+final class Stubs {
+
+    private static Unsafe unsafe;
+
+    private Stubs(){}
+
+    /**
+     * NPC.Personal and NPC.Attributes read NMS registries and the Bukkit scheduler when they are loaded.
+     */
+    static synchronized void setUpServer() throws ReflectiveOperationException {
+        if(unsafe != null) return;
+        SharedConstants.a();
+        DispenserRegistry.a();
+        if(Bukkit.getServer() == null) Bukkit.setServer(stub(Server.class, (proxy, method, args) -> switch (method.getName()){
+            case "getLogger" -> Logger.getLogger("PlayerNPCTest");
+            case "getName", "getVersion", "getBukkitVersion" -> "PlayerNPCTest";
+            default -> null;
+        }));
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        unsafe = (Unsafe) field.get(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T allocate(Class<T> type) throws ReflectiveOperationException {
+        return (T) unsafe.allocateInstance(type);
+    }
+
+    static void set(Object target, Class<?> owner, String name, Object value) throws ReflectiveOperationException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    static NPCLib npcLib() throws ReflectiveOperationException {
+        NPCLib npcLib = allocate(NPCLib.class);
+        set(npcLib, NPCLib.class, "playerManager", new ConcurrentHashMap<>());
+        set(npcLib, NPCLib.class, "globalNPCs", new ConcurrentHashMap<>());
+        set(npcLib, NPCLib.class, "pluginManager", new ConcurrentHashMap<>());
+        set(npcLib, NPCLib.class, "spatialCellSize", 16);
+        return npcLib;
+    }
+
+    static World world(String name){
+        return stub(World.class, (proxy, method, args) -> method.getName().equals("getName") ? name : null);
+    }
+
+    static Player player(String name){
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        return stub(Player.class, (proxy, method, args) -> switch (method.getName()){
+            case "isOnline" -> true;
+            case "getName" -> name;
+            case "getUniqueId" -> uuid;
+            default -> null;
+        });
+    }
+
+    /**
+     * Proxy of an interface that answers equals, hashCode and toString by identity and the rest with the handler.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, InvocationHandler handler){
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> switch (method.getName()){
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            default -> handler.invoke(proxy, method, args);
+        });
+    }
+
+}